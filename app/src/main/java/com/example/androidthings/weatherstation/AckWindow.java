@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.BitSet;
+
+/**
+ * Tracks which sequence numbers are settled: acknowledged by Pub/Sub, dropped, or never issued
+ * at all. Everything below {@link #getLowWatermark()} is settled; above it, settled numbers are
+ * kept in a bitmap, however far ahead of the watermark they are, so that the watermark only
+ * ever moves past numbers that really are settled and never past a message still waiting in a
+ * lane.
+ *
+ * <p>Not thread safe; PubsubPublisher guards it with its pending lock.
+ */
+class AckWindow {
+    // The bitmap is rebased once the watermark is this far past its origin, which keeps it at
+    // a few words however many numbers go by.
+    private static final int REBASE_DISTANCE = 1024;
+
+    private long mOrigin;
+    private long mBase;
+    // Bit i is number mOrigin + i.
+    private BitSet mSettled = new BitSet();
+
+    AckWindow(long base) {
+        mOrigin = base;
+        mBase = base;
+    }
+
+    void markAcked(long first, long last) {
+        for (long seq = Math.max(first, mBase); seq <= last; seq++) {
+            mSettled.set(index(seq));
+        }
+        advance();
+    }
+
+    /** Marks a number that will never be acknowledged: dropped, abandoned or never issued. */
+    void markSettled(long seq) {
+        markAcked(seq, seq);
+    }
+
+    boolean isSettled(long seq) {
+        return seq < mBase || mSettled.get(index(seq));
+    }
+
+    /** Every sequence number strictly below the returned value is settled. */
+    long getLowWatermark() {
+        return mBase;
+    }
+
+    private void advance() {
+        mBase = mOrigin + mSettled.nextClearBit((int) (mBase - mOrigin));
+        if (mBase - mOrigin >= REBASE_DISTANCE) {
+            int shift = (int) (mBase - mOrigin);
+            mSettled = mSettled.get(shift, Math.max(shift, mSettled.length()));
+            mOrigin = mBase;
+        }
+    }
+
+    private int index(long seq) {
+        long index = seq - mOrigin;
+        if (index > Integer.MAX_VALUE) {
+            // Would take billions of messages behind a single stuck one.
+            throw new IllegalArgumentException("Sequence number too far ahead: " + seq);
+        }
+        return (int) index;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Additive increase, multiplicative decrease of a window, as TCP does for its congestion
+ * window. Each request that completes within {@link #LATENCY_FACTOR} times the baseline
+ * round-trip time grows the window by one; a request that timed out or was refused for load
+ * halves it. A request that succeeds but slowly leaves the window as it is. The baseline is the
+ * fastest recent round trip, which creeps up slowly so that a station whose link got slower for
+ * good adapts too.
+ *
+ * <p>Not thread safe; used on the network worker only.
+ */
+class AimdController {
+    private static final int LATENCY_FACTOR = 2;
+    // The baseline grows by 1/32 per slower request, doubling after about 22 of them.
+    private static final int BASELINE_DRIFT_SHIFT = 5;
+
+    private final int mMinWindow;
+    private final int mMaxWindow;
+    private int mWindow;
+    private long mBaselineRttMs = -1;
+
+    AimdController(int minWindow, int maxWindow, int initialWindow) {
+        if (minWindow < 1 || maxWindow < minWindow) {
+            throw new IllegalArgumentException("Invalid window: " + minWindow + "-" + maxWindow);
+        }
+        mMinWindow = minWindow;
+        mMaxWindow = maxWindow;
+        mWindow = Math.max(minWindow, Math.min(maxWindow, initialWindow));
+    }
+
+    int getWindow() {
+        return mWindow;
+    }
+
+    long getBaselineRttMs() {
+        return mBaselineRttMs;
+    }
+
+    void onSuccess(long rttMs) {
+        if (mBaselineRttMs < 0 || rttMs < mBaselineRttMs) {
+            mBaselineRttMs = rttMs;
+        } else {
+            mBaselineRttMs = Math.min(rttMs,
+                    mBaselineRttMs + Math.max(1, mBaselineRttMs >> BASELINE_DRIFT_SHIFT));
+        }
+        if (rttMs <= LATENCY_FACTOR * Math.max(1, mBaselineRttMs)) {
+            mWindow = Math.min(mMaxWindow, mWindow + 1);
+        }
+    }
+
+    /** Only for failures that signal load; an auth or client error says nothing about it. */
+    void onFailure() {
+        mWindow = Math.max(mMinWindow, mWindow / 2);
+    }
+}
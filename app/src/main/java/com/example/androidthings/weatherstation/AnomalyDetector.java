@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Streaming plausibility checks for one sensor channel, run on raw readings before filtering.
+ * Keeps a constant amount of state: an exponentially weighted mean and variance for spike
+ * detection, the last reading for stuck-value detection and the last accepted reading for the
+ * rate-of-change limit.
+ *
+ * <p>The rate limit is applied over at least {@link #MIN_RATE_INTERVAL_NANOS}: readings a few
+ * milliseconds apart, as in a sampler burst, may differ by the limit's worth of one such
+ * interval. Dividing quantization noise by a 10 ms gap would otherwise read as a storm.
+ */
+class AnomalyDetector {
+
+    enum Fault {
+        NONE,
+        OUT_OF_RANGE,
+        RATE_OF_CHANGE,
+        SPIKE,
+        STUCK,
+        // The sensor stopped answering altogether; reported by the sampler, not the detector.
+        UNAVAILABLE
+    }
+
+    private static final float EWMA_ALPHA = 0.05f;
+    private static final int WARMUP_SAMPLES = 20;
+    private static final float SPIKE_THRESHOLD = 6.f;
+    // After this many outliers in a row the level really moved; start tracking it.
+    private static final int LEVEL_SHIFT_SAMPLES = 10;
+    // Bit-identical readings in a row; the BMP280 noise floor makes these unlikely.
+    private static final int STUCK_SAMPLES = 100;
+    private static final long MIN_RATE_INTERVAL_NANOS = 1000000000L;
+
+    private final float mMin;
+    private final float mMax;
+    private final float mMaxRatePerSecond;
+    private final float mMinDeviation;
+
+    private float mMean;
+    private float mVariance;
+    private int mSeen;
+    private int mOutliers;
+
+    private float mLastRaw = Float.NaN;
+    private int mRepeats;
+
+    private float mLastAccepted = Float.NaN;
+    private long mLastAcceptedTimestamp;
+
+    /**
+     * @param min lowest physically plausible value
+     * @param max highest physically plausible value
+     * @param maxRatePerSecond largest plausible change per second
+     * @param minDeviation floor for the standard deviation used in the spike test, so that a very
+     *                     quiet signal does not turn sensor noise into spikes
+     */
+    AnomalyDetector(float min, float max, float maxRatePerSecond, float minDeviation) {
+        mMin = min;
+        mMax = max;
+        mMaxRatePerSecond = maxRatePerSecond;
+        mMinDeviation = minDeviation;
+    }
+
+    /** Operating range of the BMP280, in degrees Celsius. */
+    static AnomalyDetector forTemperature() {
+        return new AnomalyDetector(-40.f, 85.f, 2.f, 0.05f);
+    }
+
+    /** Operating range of the BMP280, in hectopascals. */
+    static AnomalyDetector forPressure() {
+        return new AnomalyDetector(300.f, 1100.f, 5.f, 0.1f);
+    }
+
+    Fault check(float value, long timestampNanos) {
+        if (Float.isNaN(value) || value < mMin || value > mMax) {
+            return Fault.OUT_OF_RANGE;
+        }
+        if (value == mLastRaw) {
+            mRepeats++;
+        } else {
+            mRepeats = 0;
+        }
+        mLastRaw = value;
+        if (mRepeats >= STUCK_SAMPLES) {
+            return Fault.STUCK;
+        }
+        if (!Float.isNaN(mLastAccepted)) {
+            long elapsedNanos = Math.max(MIN_RATE_INTERVAL_NANOS,
+                    timestampNanos - mLastAcceptedTimestamp);
+            if (Math.abs(value - mLastAccepted) * 1e9f / elapsedNanos > mMaxRatePerSecond) {
+                return Fault.RATE_OF_CHANGE;
+            }
+        }
+        if (isSpike(value)) {
+            return Fault.SPIKE;
+        }
+        mLastAccepted = value;
+        mLastAcceptedTimestamp = timestampNanos;
+        return Fault.NONE;
+    }
+
+    void reset() {
+        mSeen = 0;
+        mOutliers = 0;
+        mLastRaw = Float.NaN;
+        mRepeats = 0;
+        mLastAccepted = Float.NaN;
+    }
+
+    private boolean isSpike(float value) {
+        if (mSeen >= WARMUP_SAMPLES) {
+            float deviation = Math.max((float) Math.sqrt(mVariance), mMinDeviation);
+            if (Math.abs(value - mMean) > SPIKE_THRESHOLD * deviation) {
+                if (++mOutliers < LEVEL_SHIFT_SAMPLES) {
+                    return true;
+                }
+                mSeen = 0;
+            }
+        }
+        mOutliers = 0;
+        if (mSeen == 0) {
+            mMean = value;
+            mVariance = 0.f;
+        } else {
+            float diff = value - mMean;
+            mMean += EWMA_ALPHA * diff;
+            mVariance = (1.f - EWMA_ALPHA) * (mVariance + EWMA_ALPHA * diff * diff);
+        }
+        mSeen++;
+        return false;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Base64 encoder, without line breaks, that reuses its output buffer. Unlike
+ * {@code android.util.Base64} it allocates nothing but the returned string.
+ */
+class Base64Encoder {
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+                    .getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] mBuffer = new byte[0];
+
+    int capacity() {
+        return mBuffer.length;
+    }
+
+    void trim() {
+        mBuffer = new byte[0];
+    }
+
+    String encode(byte[] data, int length) {
+        int encodedLength = (length + 2) / 3 * 4;
+        if (mBuffer.length < encodedLength) {
+            mBuffer = new byte[encodedLength * 2];
+        }
+        int out = 0;
+        int i = 0;
+        for (; i + 2 < length; i += 3) {
+            int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+            mBuffer[out++] = ALPHABET[bits >>> 18];
+            mBuffer[out++] = ALPHABET[(bits >>> 12) & 0x3F];
+            mBuffer[out++] = ALPHABET[(bits >>> 6) & 0x3F];
+            mBuffer[out++] = ALPHABET[bits & 0x3F];
+        }
+        if (i < length) {
+            int bits = (data[i] & 0xFF) << 16;
+            if (i + 1 < length) {
+                bits |= (data[i + 1] & 0xFF) << 8;
+            }
+            mBuffer[out++] = ALPHABET[bits >>> 18];
+            mBuffer[out++] = ALPHABET[(bits >>> 12) & 0x3F];
+            mBuffer[out++] = i + 1 < length ? ALPHABET[(bits >>> 6) & 0x3F] : (byte) '=';
+            mBuffer[out++] = '=';
+        }
+        return new String(mBuffer, 0, out, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/** Reads bit fields written by {@link BitWriter}. */
+class BitReader {
+    private byte[] mBuffer;
+    private long mPosition;
+    private long mEnd;
+
+    BitReader(byte[] buffer, int offset, int length) {
+        reset(buffer, offset, length);
+    }
+
+    BitReader reset(byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mPosition = (long) offset << 3;
+        mEnd = (long) (offset + length) << 3;
+        return this;
+    }
+
+    /** Reads {@code bits} bits, 0 to 64 of them, as an unsigned value. */
+    long readBits(int bits) {
+        if (mPosition + bits > mEnd) {
+            throw new IllegalStateException("Read past the end of the block");
+        }
+        long value = 0;
+        for (int i = 0; i < bits; i++) {
+            int bit = (mBuffer[(int) (mPosition >>> 3)] >>> (7 - (int) (mPosition & 7))) & 1;
+            value = (value << 1) | bit;
+            mPosition++;
+        }
+        return value;
+    }
+
+    boolean readBit() {
+        return readBits(1) != 0;
+    }
+
+    /** Skips to the next byte boundary. */
+    void alignToByte() {
+        mPosition = (mPosition + 7) & ~7L;
+    }
+
+    boolean hasRemaining() {
+        return mPosition < mEnd;
+    }
+}
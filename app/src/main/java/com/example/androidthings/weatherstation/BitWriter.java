@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/** Appends bit fields, most significant bit first, to a reusable byte buffer that only grows. */
+class BitWriter {
+    private byte[] mBuffer;
+    private long mBitLength;
+
+    BitWriter(int initialCapacity) {
+        mBuffer = new byte[initialCapacity];
+    }
+
+    BitWriter reset() {
+        mBitLength = 0;
+        return this;
+    }
+
+    /** Writes the low {@code bits} bits of {@code value}, 0 to 64 of them. */
+    void writeBits(long value, int bits) {
+        ensureCapacity(bits);
+        for (int i = bits - 1; i >= 0; i--) {
+            int index = (int) (mBitLength >>> 3);
+            int shift = 7 - (int) (mBitLength & 7);
+            if (shift == 7) {
+                mBuffer[index] = 0;
+            }
+            if (((value >>> i) & 1) != 0) {
+                mBuffer[index] |= 1 << shift;
+            }
+            mBitLength++;
+        }
+    }
+
+    void writeBit(boolean bit) {
+        writeBits(bit ? 1 : 0, 1);
+    }
+
+    /** Pads with zero bits up to the next byte boundary. */
+    void alignToByte() {
+        int padding = (int) (-mBitLength & 7);
+        writeBits(0, padding);
+    }
+
+    long getBitLength() {
+        return mBitLength;
+    }
+
+    /** Bytes written so far, a partially written last byte included. */
+    int getByteLength() {
+        return (int) ((mBitLength + 7) >>> 3);
+    }
+
+    /** The backing buffer; only the first {@link #getByteLength()} bytes are meaningful. */
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    private void ensureCapacity(int bits) {
+        int needed = (int) ((mBitLength + bits + 7) >>> 3);
+        if (needed > mBuffer.length) {
+            byte[] buffer = new byte[Math.max(mBuffer.length * 2, needed)];
+            System.arraycopy(mBuffer, 0, buffer, 0, getByteLength());
+            mBuffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.things.contrib.driver.bmx280.Bmx280;
+
+import java.io.IOException;
+
+/**
+ * Reads the BMP280 through the {@link I2cBusArbiter}, at sensor priority, and feeds the readings
+ * into the filtering stage. Readings are stamped with {@link SystemClock#elapsedRealtimeNanos()},
+ * the time base of {@code SensorEvent.timestamp}.
+ *
+ * <p>The rate follows the {@link SamplingPlanner}. Below {@link #CONTINUOUS_INTERVAL_MS} the chip
+ * measures continuously in normal mode; above it, it sleeps and every interval is one short
+ * burst of forced measurements, which gives the median filter a few readings to work with
+ * while the chip, the bus and the CPU stay idle the rest of the time. The chip oversamples each
+ * measurement as the {@link FilterProfile} asks, and bursts wait out the matching conversion
+ * time.
+ */
+class Bmx280Sampler {
+    private static final String TAG = Bmx280Sampler.class.getSimpleName();
+
+    // Roughly the rate SensorManager.SENSOR_DELAY_NORMAL delivered.
+    static final long MIN_INTERVAL_MS = 200;
+    static final long CONTINUOUS_INTERVAL_MS = 1000;
+    private static final int BURST_SAMPLES = 4;
+    // Slack on top of the datasheet's maximum conversion time, for the handler and the bus.
+    private static final long CONVERSION_MARGIN_MS = 3;
+    // Consecutive failed reads before the sensor is reported unavailable.
+    private static final int MAX_READ_ERRORS = 5;
+    // A sampler that has not completed a read for this long, or for a few intervals if that is
+    // longer, is restarted by the watchdog.
+    static final long HEARTBEAT_DEADLINE_MS = 5000;
+    private static final int HEARTBEAT_INTERVALS = 3;
+
+    private final Bmx280 mBmx280;
+    private final I2cBusArbiter mArbiter;
+    private final FilteredSensorListener mTemperatureListener;
+    private final FilteredSensorListener mPressureListener;
+    private final long mConversionMs;
+
+    private final Handler mHandler = Worker.SENSOR_INGEST.getHandler();
+    private volatile Watchdog.Heartbeat mHeartbeat;
+    private volatile long mRequestedIntervalMs = MIN_INTERVAL_MS;
+
+    // Only touched on the sampler's worker.
+    private long mIntervalMs;
+    private boolean mContinuous;
+    private int mBurstRemaining;
+
+    // Only touched on the arbiter thread.
+    private int mReadErrors;
+
+    /** {@code oversampling} applies to both channels: 1, 2, 4, 8 or 16. */
+    Bmx280Sampler(String bus, I2cBusArbiter arbiter, int oversampling,
+                  FilteredSensorListener temperatureListener,
+                  FilteredSensorListener pressureListener) throws IOException {
+        int setting = toOversamplingSetting(oversampling);
+        mArbiter = arbiter;
+        mTemperatureListener = temperatureListener;
+        mPressureListener = pressureListener;
+        mConversionMs = getConversionMs(oversampling);
+        mBmx280 = new Bmx280(bus);
+        mBmx280.setTemperatureOversampling(setting);
+        mBmx280.setPressureOversampling(setting);
+        mBmx280.setMode(Bmx280.MODE_SLEEP);
+    }
+
+    private static int toOversamplingSetting(int oversampling) {
+        switch (oversampling) {
+            case 1:
+                return Bmx280.OVERSAMPLING_1X;
+            case 2:
+                return Bmx280.OVERSAMPLING_2X;
+            case 4:
+                return Bmx280.OVERSAMPLING_4X;
+            case 8:
+                return Bmx280.OVERSAMPLING_8X;
+            case 16:
+                return Bmx280.OVERSAMPLING_16X;
+            default:
+                throw new IllegalArgumentException("Unsupported oversampling: " + oversampling);
+        }
+    }
+
+    // Maximum measurement time from the BMP280 datasheet, 1.25 + 2.3 * osrs_t + 2.3 * osrs_p
+    // + 0.575 ms: 6.4 ms at 1x, 20.2 ms at 4x.
+    private static long getConversionMs(int oversampling) {
+        return (long) Math.ceil(1.25 + 2.3 * oversampling + 2.3 * oversampling + 0.575)
+                + CONVERSION_MARGIN_MS;
+    }
+
+    public void start() {
+        mHandler.post(mApplyIntervalRunnable);
+    }
+
+    /** Reads every {@code intervalMs}, but never more often than {@link #MIN_INTERVAL_MS}. */
+    public void setInterval(long intervalMs) {
+        mRequestedIntervalMs = Math.max(MIN_INTERVAL_MS, intervalMs);
+        mHandler.post(mApplyIntervalRunnable);
+    }
+
+    /** Beats on every successful read. */
+    public void setHeartbeat(Watchdog.Heartbeat heartbeat) {
+        mHeartbeat = heartbeat;
+    }
+
+    /** Stops sampling. The sensor itself is closed on the arbiter thread, after pending reads. */
+    public void close() {
+        mHandler.removeCallbacks(mApplyIntervalRunnable);
+        mHandler.removeCallbacks(mTickRunnable);
+        mHandler.removeCallbacks(mBurstRunnable);
+        mHandler.removeCallbacks(mBurstReadRunnable);
+        mArbiter.submit(new I2cBusArbiter.Transaction(I2cBusArbiter.PRIORITY_SENSOR) {
+            @Override
+            void execute() throws IOException {
+                mBmx280.close();
+            }
+        });
+    }
+
+    private Runnable mApplyIntervalRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long interval = mRequestedIntervalMs;
+            boolean continuous = interval < CONTINUOUS_INTERVAL_MS;
+            if (interval == mIntervalMs) {
+                return;
+            }
+            mHandler.removeCallbacks(mTickRunnable);
+            mHandler.removeCallbacks(mBurstRunnable);
+            mHandler.removeCallbacks(mBurstReadRunnable);
+            mIntervalMs = interval;
+            mContinuous = continuous;
+            mArbiter.submit(continuous ? mNormalModeTransaction : mSleepModeTransaction);
+            Watchdog.Heartbeat heartbeat = mHeartbeat;
+            if (heartbeat != null) {
+                heartbeat.setDeadline(Math.max(HEARTBEAT_DEADLINE_MS,
+                        HEARTBEAT_INTERVALS * interval));
+            }
+            mTickRunnable.run();
+        }
+    };
+
+    private Runnable mTickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mContinuous) {
+                mArbiter.submit(mReadTransaction);
+            } else {
+                mBurstRemaining = BURST_SAMPLES;
+                mBurstRunnable.run();
+            }
+            mHandler.postDelayed(mTickRunnable, mIntervalMs);
+        }
+    };
+
+    // Starts one forced conversion; the chip goes back to sleep by itself afterwards.
+    private Runnable mBurstRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mArbiter.submit(mForcedModeTransaction);
+        }
+    };
+
+    private Runnable mBurstReadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mArbiter.submit(mReadTransaction);
+            if (--mBurstRemaining > 0) {
+                mBurstRunnable.run();
+            }
+        }
+    };
+
+    private I2cBusArbiter.Transaction mNormalModeTransaction =
+            new I2cBusArbiter.Transaction(I2cBusArbiter.PRIORITY_SENSOR) {
+        @Override
+        void execute() throws IOException {
+            mBmx280.setMode(Bmx280.MODE_NORMAL);
+        }
+    };
+
+    private I2cBusArbiter.Transaction mSleepModeTransaction =
+            new I2cBusArbiter.Transaction(I2cBusArbiter.PRIORITY_SENSOR) {
+        @Override
+        void execute() throws IOException {
+            mBmx280.setMode(Bmx280.MODE_SLEEP);
+        }
+    };
+
+    private I2cBusArbiter.Transaction mForcedModeTransaction =
+            new I2cBusArbiter.Transaction(I2cBusArbiter.PRIORITY_SENSOR) {
+        @Override
+        void execute() throws IOException {
+            try {
+                mBmx280.setMode(Bmx280.MODE_FORCED);
+            } finally {
+                // Read once the conversion is done, timed from when it actually started. Read
+                // even if starting it failed, so that a missing sensor is counted and reported.
+                mHandler.postDelayed(mBurstReadRunnable, mConversionMs);
+            }
+        }
+    };
+
+    private I2cBusArbiter.Transaction mReadTransaction =
+            new I2cBusArbiter.Transaction(I2cBusArbiter.PRIORITY_SENSOR) {
+        @Override
+        void execute() {
+            float temperature;
+            float pressure;
+            try {
+                temperature = mBmx280.readTemperature();
+                pressure = mBmx280.readPressure();
+            } catch (IOException e) {
+                EventTrace.record(TraceEvents.SENSOR_READ_FAILED, ++mReadErrors);
+                if (mReadErrors == MAX_READ_ERRORS) {
+                    Log.e(TAG, "BMP280 not responding", e);
+                    long timestampNanos = SystemClock.elapsedRealtimeNanos();
+                    mTemperatureListener.onSensorUnavailable(timestampNanos);
+                    mPressureListener.onSensorUnavailable(timestampNanos);
+                }
+                return;
+            }
+            mReadErrors = 0;
+            Watchdog.Heartbeat heartbeat = mHeartbeat;
+            if (heartbeat != null) {
+                heartbeat.beat();
+            }
+            long timestampNanos = SystemClock.elapsedRealtimeNanos();
+            mTemperatureListener.onRawSample(temperature, timestampNanos);
+            mPressureListener.onRawSample(pressure, timestampNanos);
+        }
+    };
+}
@@ -105,6 +105,41 @@ public final class BoardDefaults {
         }
     }
 
+    /**
+     * Heap our own buffers and caches may use, see {@link MemoryBudget}. A small slice of the
+     * board's RAM: the system and the HTTP stack need the rest.
+     */
+    public static long getHeapBudgetBytes() {
+        switch (getBoardVariant()) {
+            case DEVICE_EDISON_ARDUINO:
+                return 4 * 1024 * 1024;
+            case DEVICE_EDISON:
+                return 4 * 1024 * 1024;
+            case DEVICE_RPI3:
+                return 8 * 1024 * 1024;
+            case DEVICE_NXP:
+                return 2 * 1024 * 1024;
+            default:
+                throw new IllegalArgumentException("Unknown device: " + Build.DEVICE);
+        }
+    }
+
+    /** Flash our own files may use, see {@link MemoryBudget}. */
+    public static long getDiskBudgetBytes() {
+        switch (getBoardVariant()) {
+            case DEVICE_EDISON_ARDUINO:
+                return 32 * 1024 * 1024;
+            case DEVICE_EDISON:
+                return 32 * 1024 * 1024;
+            case DEVICE_RPI3:
+                return 128 * 1024 * 1024;
+            case DEVICE_NXP:
+                return 16 * 1024 * 1024;
+            default:
+                throw new IllegalArgumentException("Unknown device: " + Build.DEVICE);
+        }
+    }
+
     private static String getBoardVariant() {
         if (!sBoardVariant.isEmpty()) {
             return sBoardVariant;
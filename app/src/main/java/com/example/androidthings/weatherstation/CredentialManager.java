@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.api.client.extensions.android.http.AndroidHttp;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.pubsub.PubsubScopes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the service account credential and keeps an OAuth access token ready ahead of time.
+ * Credentials are parsed and tokens refreshed on a background thread, well before they expire,
+ * and the current token is cached in app-private preferences so a rebooted device can publish
+ * immediately. Requests only ever attach the cached token and never refresh inline.
+ */
+class CredentialManager {
+    private static final String TAG = CredentialManager.class.getSimpleName();
+
+    private static final String PREFS_NAME = "oauth_token_cache";
+    private static final String KEY_ACCESS_TOKEN = "access_token";
+    private static final String KEY_EXPIRATION_MS = "expiration_ms";
+
+    private static final long REFRESH_MARGIN_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final long RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private final Context mContext;
+    private final int mCredentialResourceId;
+    private final String mTokenServerUrl;
+    private final SharedPreferences mPrefs;
+
+    private final Handler mHandler = Worker.CREDENTIALS.getHandler();
+
+    // Only touched on the credentials worker.
+    private GoogleCredential mCredential;
+
+    private volatile String mAccessToken;
+    private volatile long mExpirationMs;
+
+    /**
+     * @param tokenServerUrl token endpoint to use instead of Google's, e.g. a local stand-in for
+     *                       tests. Empty to use the endpoint from the credentials.
+     */
+    CredentialManager(Context context, int credentialResourceId, String tokenServerUrl) {
+        mContext = context;
+        mCredentialResourceId = credentialResourceId;
+        mTokenServerUrl = tokenServerUrl;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public void start() {
+        restoreCachedToken();
+        mHandler.post(mLoadRunnable);
+    }
+
+    public void close() {
+        mHandler.removeCallbacks(mLoadRunnable);
+        mHandler.removeCallbacks(mRefreshRunnable);
+    }
+
+    public HttpRequestInitializer getRequestInitializer() {
+        return mRequestInitializer;
+    }
+
+    /** Returns true if a token is available that will not expire within the refresh margin. */
+    public boolean hasValidToken() {
+        return mAccessToken != null
+                && mExpirationMs - System.currentTimeMillis() > REFRESH_MARGIN_MS;
+    }
+
+    private void restoreCachedToken() {
+        String token = mPrefs.getString(KEY_ACCESS_TOKEN, null);
+        long expirationMs = mPrefs.getLong(KEY_EXPIRATION_MS, 0);
+        if (token != null && expirationMs > System.currentTimeMillis()) {
+            mAccessToken = token;
+            mExpirationMs = expirationMs;
+            Log.d(TAG, "restored cached token, expires in "
+                    + (expirationMs - System.currentTimeMillis()) + "ms");
+        }
+    }
+
+    private void scheduleRefresh() {
+        mHandler.removeCallbacks(mRefreshRunnable);
+        long delay = hasValidToken()
+                ? mExpirationMs - System.currentTimeMillis() - REFRESH_MARGIN_MS : 0;
+        mHandler.postDelayed(mRefreshRunnable, delay);
+    }
+
+    private Runnable mLoadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            InputStream jsonCredentials =
+                    mContext.getResources().openRawResource(mCredentialResourceId);
+            try {
+                GoogleCredential credential = GoogleCredential.fromStream(jsonCredentials)
+                        .createScoped(Collections.singleton(PubsubScopes.PUBSUB));
+                if (!mTokenServerUrl.isEmpty()) {
+                    credential = new GoogleCredential.Builder()
+                            .setTransport(AndroidHttp.newCompatibleTransport())
+                            .setJsonFactory(JacksonFactory.getDefaultInstance())
+                            .setServiceAccountId(credential.getServiceAccountId())
+                            .setServiceAccountPrivateKey(credential.getServiceAccountPrivateKey())
+                            .setServiceAccountPrivateKeyId(
+                                    credential.getServiceAccountPrivateKeyId())
+                            .setServiceAccountScopes(credential.getServiceAccountScopes())
+                            .setTokenServerEncodedUrl(mTokenServerUrl)
+                            .build();
+                }
+                mCredential = credential;
+                scheduleRefresh();
+            } catch (IOException e) {
+                Log.e(TAG, "Error loading credentials", e);
+            } finally {
+                try {
+                    jsonCredentials.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing input stream", e);
+                }
+            }
+        }
+    };
+
+    private Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mCredential == null) {
+                return;
+            }
+            try {
+                if (!mCredential.refreshToken() || mCredential.getAccessToken() == null) {
+                    throw new IOException("token server returned no token");
+                }
+                Long expirationMs = mCredential.getExpirationTimeMilliseconds();
+                mExpirationMs = expirationMs != null ? expirationMs : 0;
+                mAccessToken = mCredential.getAccessToken();
+                mPrefs.edit()
+                        .putString(KEY_ACCESS_TOKEN, mAccessToken)
+                        .putLong(KEY_EXPIRATION_MS, mExpirationMs)
+                        .apply();
+                Log.d(TAG, "refreshed token, expires in "
+                        + (mExpirationMs - System.currentTimeMillis()) + "ms");
+                scheduleRefresh();
+            } catch (IOException e) {
+                Log.e(TAG, "Error refreshing token", e);
+                mHandler.postDelayed(mRefreshRunnable, RETRY_DELAY_MS);
+            }
+        }
+    };
+
+    private HttpRequestInitializer mRequestInitializer = new HttpRequestInitializer() {
+        @Override
+        public void initialize(HttpRequest request) {
+            String token = mAccessToken;
+            if (token != null) {
+                request.getHeaders().setAuthorization("Bearer " + token);
+            }
+            request.setUnsuccessfulResponseHandler(mUnauthorizedHandler);
+        }
+    };
+
+    // The token was revoked or the clock is off: fetch a new one in the background and let the
+    // caller's own retry logic resend.
+    private HttpUnsuccessfulResponseHandler mUnauthorizedHandler =
+            new HttpUnsuccessfulResponseHandler() {
+        @Override
+        public boolean handleResponse(HttpRequest request, HttpResponse response,
+                                      boolean supportsRetry) {
+            if (response.getStatusCode() == HttpStatusCodes.STATUS_CODE_UNAUTHORIZED) {
+                mAccessToken = null;
+                mHandler.removeCallbacks(mRefreshRunnable);
+                mHandler.post(mRefreshRunnable);
+            }
+            return false;
+        }
+    };
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Exponential moving average. Lower alpha means smoother output and more lag.
+ */
+class EmaFilter implements SensorFilter {
+    private final float mAlpha;
+    private float mValue = Float.NaN;
+
+    EmaFilter(float alpha) {
+        if (alpha <= 0.f || alpha > 1.f) {
+            throw new IllegalArgumentException("alpha must be in (0, 1]: " + alpha);
+        }
+        mAlpha = alpha;
+    }
+
+    @Override
+    public float apply(float value) {
+        if (Float.isNaN(mValue)) {
+            mValue = value;
+        } else {
+            mValue += mAlpha * (value - mValue);
+        }
+        return mValue;
+    }
+
+    @Override
+    public void reset() {
+        mValue = Float.NaN;
+    }
+}
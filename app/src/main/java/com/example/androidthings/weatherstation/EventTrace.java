@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory binary trace of recent events, for the paths that run too often to log. A record is
+ * a timestamp, a thread id, an event id and two numeric arguments, written into preallocated
+ * arrays: recording formats nothing and allocates nothing, and an event below the current
+ * level costs one array lookup. The ring keeps the last {@link #CAPACITY} records and is dumped
+ * to a file on demand or when the app crashes; {@link EventTraceDecoder} prints dumps on a host.
+ * Event ids, levels and the dump header are in {@link TraceEvents}.
+ *
+ * <p>Dump layout, big-endian: magic, version, then the event table (count, and per event its
+ * id, level and name) so that dumps decode without the app, then records up to the end of the
+ * file: timestamp (elapsed realtime nanos), thread id, event id and both arguments, oldest
+ * first.
+ */
+final class EventTrace {
+    private static final String TAG = EventTrace.class.getSimpleName();
+
+    static final int CAPACITY = 4096;
+    // Timestamp, thread, event, two arguments and the commit index per record.
+    static final int HEAP_BYTES = CAPACITY * (8 + 4 + 4 + 8 + 8 + 8);
+
+    private static final long[] sTimestamps = new long[CAPACITY];
+    private static final int[] sThreads = new int[CAPACITY];
+    private static final int[] sEvents = new int[CAPACITY];
+    private static final long[] sArgs0 = new long[CAPACITY];
+    private static final long[] sArgs1 = new long[CAPACITY];
+    // Index + 1 of the record each slot holds once it is completely written.
+    private static final AtomicLongArray sCommitted = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong sNext = new AtomicLong();
+    private static volatile int sLevel = BuildConfig.DEBUG ? Log.DEBUG : Log.INFO;
+    private static boolean sCrashHandlerInstalled;
+
+    private EventTrace() {}
+
+    /** Events below {@code level}, one of the {@link Log} priorities, are not recorded. */
+    static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    /** For callers that need to compute arguments; {@link #record} checks this itself. */
+    static boolean isEnabled(int event) {
+        return TraceEvents.LEVELS[event] >= sLevel;
+    }
+
+    static void record(int event, long arg0, long arg1) {
+        if (TraceEvents.LEVELS[event] < sLevel) {
+            return;
+        }
+        long index = sNext.getAndIncrement();
+        int slot = (int) (index % CAPACITY);
+        // Invalidate first so that a dump racing with this write skips the slot.
+        sCommitted.set(slot, 0);
+        sTimestamps[slot] = SystemClock.elapsedRealtimeNanos();
+        sThreads[slot] = Process.myTid();
+        sEvents[slot] = event;
+        sArgs0[slot] = arg0;
+        sArgs1[slot] = arg1;
+        sCommitted.set(slot, index + 1);
+    }
+
+    static void record(int event, long arg0) {
+        record(event, arg0, 0);
+    }
+
+    static void record(int event) {
+        record(event, 0, 0);
+    }
+
+    /**
+     * Writes the records currently in the ring to {@code file}. Records being written
+     * concurrently are left out. Safe to call from an uncaught exception handler.
+     */
+    static void dump(File file) {
+        long end = sNext.get();
+        long start = Math.max(0, end - CAPACITY);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(TraceEvents.MAGIC);
+            out.writeInt(TraceEvents.VERSION);
+            out.writeInt(TraceEvents.NAMES.length - 1);
+            for (int event = 1; event < TraceEvents.NAMES.length; event++) {
+                out.writeInt(event);
+                out.writeInt(TraceEvents.LEVELS[event]);
+                out.writeUTF(TraceEvents.NAMES[event]);
+            }
+            for (long index = start; index < end; index++) {
+                int slot = (int) (index % CAPACITY);
+                if (sCommitted.get(slot) != index + 1) {
+                    continue;
+                }
+                out.writeLong(sTimestamps[slot]);
+                out.writeInt(sThreads[slot]);
+                out.writeInt(sEvents[slot]);
+                out.writeLong(sArgs0[slot]);
+                out.writeLong(sArgs1[slot]);
+            }
+            Log.i(TAG, "Trace dumped to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Error dumping trace", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing trace dump", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Dumps the trace to {@code file} before any uncaught exception takes the process down,
+     * then lets the previous handler run. Only the first call installs the handler.
+     */
+    static synchronized void dumpOnCrash(final File file) {
+        if (sCrashHandlerInstalled) {
+            return;
+        }
+        sCrashHandlerInstalled = true;
+        final Thread.UncaughtExceptionHandler previous =
+                Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable e) {
+                dump(file);
+                if (previous != null) {
+                    previous.uncaughtException(thread, e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Prints an {@link EventTrace} dump, one record per line with the time relative to the first
+ * record. Plain Java, meant to run on a host:
+ * {@code java EventTraceDecoder trace.bin}.
+ */
+class EventTraceDecoder {
+    private static final String[] LEVEL_NAMES = {"?", "?", "V", "D", "I", "W", "E", "A"};
+
+    static void decode(InputStream input, PrintStream out) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        if (in.readInt() != TraceEvents.MAGIC) {
+            throw new IOException("Not a trace dump");
+        }
+        int version = in.readInt();
+        if (version != TraceEvents.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        Map<Integer, String> names = new HashMap<>();
+        Map<Integer, Integer> levels = new HashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            int event = in.readInt();
+            levels.put(event, in.readInt());
+            names.put(event, in.readUTF());
+        }
+        long first = -1;
+        while (true) {
+            long timestamp;
+            try {
+                timestamp = in.readLong();
+            } catch (EOFException e) {
+                break;
+            }
+            int thread = in.readInt();
+            int event = in.readInt();
+            long arg0 = in.readLong();
+            long arg1 = in.readLong();
+            if (first < 0) {
+                first = timestamp;
+            }
+            String name = names.containsKey(event) ? names.get(event) : "event_" + event;
+            Integer level = levels.get(event);
+            out.printf("%12.3f ms %s %6d %-24s %d %d%n", (timestamp - first) / 1e6,
+                    level != null && level < LEVEL_NAMES.length ? LEVEL_NAMES[level] : "?",
+                    thread, name, arg0, arg1);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        try (InputStream in = new FileInputStream(args[0])) {
+            decode(in, System.out);
+        }
+    }
+}
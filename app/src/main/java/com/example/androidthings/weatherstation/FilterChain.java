@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * An ordered list of {@link SensorFilter} stages. Oversampling happens before this, in the
+ * BMP280 itself; see {@link FilterProfile#getOversampling()}.
+ */
+class FilterChain {
+    private final SensorFilter[] mStages;
+
+    FilterChain(SensorFilter... stages) {
+        mStages = stages;
+    }
+
+    /** Runs a raw reading through every stage and returns the filtered value. */
+    float add(float raw) {
+        float value = raw;
+        for (SensorFilter stage : mStages) {
+            value = stage.apply(value);
+        }
+        return value;
+    }
+
+    void reset() {
+        for (SensorFilter stage : mStages) {
+            stage.reset();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.util.Log;
+
+/**
+ * Trade-off between noise and latency for the on-device filtering stage, selected per deployment
+ * with the {@code FILTER_PROFILE} build config field. Oversampling is done by the BMP280, which
+ * averages internally at a lower noise than averaging its readings would; the software stages
+ * follow.
+ */
+enum FilterProfile {
+    // BMP280 oversampling, median window, EMA alpha, Kalman process/measurement noise ratio
+    RAW(1, 0, 0.f, 0.f),
+    LOW_LATENCY(1, 3, 0.5f, 0.f),
+    BALANCED(2, 5, 0.3f, 0.f),
+    LOW_NOISE(4, 5, 0.f, 0.01f);
+
+    private static final String TAG = FilterProfile.class.getSimpleName();
+
+    private final int mOversampling;
+    private final int mMedianWindow;
+    private final float mEmaAlpha;
+    private final float mKalmanNoiseRatio;
+
+    FilterProfile(int oversampling, int medianWindow, float emaAlpha, float kalmanNoiseRatio) {
+        mOversampling = oversampling;
+        mMedianWindow = medianWindow;
+        mEmaAlpha = emaAlpha;
+        mKalmanNoiseRatio = kalmanNoiseRatio;
+    }
+
+    FilterChain createChain() {
+        int count = (mMedianWindow > 0 ? 1 : 0) + (mEmaAlpha > 0.f ? 1 : 0)
+                + (mKalmanNoiseRatio > 0.f ? 1 : 0);
+        SensorFilter[] stages = new SensorFilter[count];
+        int i = 0;
+        if (mMedianWindow > 0) {
+            stages[i++] = new MedianFilter(mMedianWindow);
+        }
+        if (mEmaAlpha > 0.f) {
+            stages[i++] = new EmaFilter(mEmaAlpha);
+        }
+        if (mKalmanNoiseRatio > 0.f) {
+            stages[i] = new KalmanFilter(mKalmanNoiseRatio, 1.f);
+        }
+        return new FilterChain(stages);
+    }
+
+    /** Oversampling factor of both BMP280 channels, see {@link Bmx280Sampler}. */
+    int getOversampling() {
+        return mOversampling;
+    }
+
+    static FilterProfile fromName(String name) {
+        try {
+            return valueOf(name);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Unknown filter profile " + name + ", using " + BALANCED);
+            return BALANCED;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+
+/**
+ * Entry point of the sensor pipeline, one per sensor. Fed either by a sample source calling
+ * {@link #onRawSample(float, long)} or by registering it with the
+ * {@link android.hardware.SensorManager}. Screens raw readings with an {@link AnomalyDetector},
+ * runs the plausible ones through a {@link FilterChain} and fans the filtered values out to every
+ * consumer, so the display, the barometer LEDs and the cloud all see the same smoothed data and
+ * none of them sees a faulty reading.
+ */
+class FilteredSensorListener implements SensorEventListener, SensorReplayer.Target {
+    private final int mSensorType;
+    private final FilterChain mChain;
+    private final AnomalyDetector mDetector;
+    private volatile SampleListener[] mListeners = new SampleListener[0];
+    private volatile SensorFaultListener mFaultListener;
+    private volatile SampleListener mRawListener;
+    private AnomalyDetector.Fault mFault = AnomalyDetector.Fault.NONE;
+
+    FilteredSensorListener(int sensorType, FilterChain chain, AnomalyDetector detector) {
+        mSensorType = sensorType;
+        mChain = chain;
+        mDetector = detector;
+    }
+
+    void setFaultListener(SensorFaultListener listener) {
+        mFaultListener = listener;
+    }
+
+    /**
+     * Sees every raw reading before it is screened or filtered, e.g. a {@link SensorRecorder}.
+     * An unavailable sensor is reported as {@code NaN}.
+     */
+    void setRawListener(SampleListener listener) {
+        mRawListener = listener;
+    }
+
+    synchronized void addListener(SampleListener listener) {
+        SampleListener[] listeners = new SampleListener[mListeners.length + 1];
+        System.arraycopy(mListeners, 0, listeners, 0, mListeners.length);
+        listeners[mListeners.length] = listener;
+        mListeners = listeners;
+    }
+
+    synchronized void removeListener(SampleListener listener) {
+        for (int i = 0; i < mListeners.length; i++) {
+            if (mListeners[i] == listener) {
+                SampleListener[] listeners = new SampleListener[mListeners.length - 1];
+                System.arraycopy(mListeners, 0, listeners, 0, i);
+                System.arraycopy(mListeners, i + 1, listeners, i, listeners.length - i);
+                mListeners = listeners;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        onRawSample(event.values[0], event.timestamp);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+
+    /** Every plausible reading yields one filtered value with the same timestamp. */
+    @Override
+    public void onRawSample(float value, long timestampNanos) {
+        SampleListener rawListener = mRawListener;
+        if (rawListener != null) {
+            rawListener.onSample(mSensorType, value, timestampNanos);
+        }
+        AnomalyDetector.Fault fault = mDetector.check(value, timestampNanos);
+        setFault(fault, value);
+        if (fault != AnomalyDetector.Fault.NONE) {
+            return;
+        }
+        float filtered = mChain.add(value);
+        SampleListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onSample(mSensorType, filtered, timestampNanos);
+        }
+    }
+
+    /** Called by the sample source when the sensor stops returning readings at all. */
+    @Override
+    public void onSensorUnavailable(long timestampNanos) {
+        SampleListener rawListener = mRawListener;
+        if (rawListener != null) {
+            rawListener.onSample(mSensorType, Float.NaN, timestampNanos);
+        }
+        setFault(AnomalyDetector.Fault.UNAVAILABLE, Float.NaN);
+    }
+
+    private void setFault(AnomalyDetector.Fault fault, float value) {
+        if (fault == mFault) {
+            return;
+        }
+        mFault = fault;
+        SensorFaultListener faultListener = mFaultListener;
+        if (faultListener != null) {
+            faultListener.onSensorFault(mSensorType, fault, value);
+        }
+    }
+}
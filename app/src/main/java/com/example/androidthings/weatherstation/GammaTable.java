@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Gamma correction for LED colors through a precomputed lookup table, so that linear fades in an
+ * animation also look linear to the eye.
+ */
+final class GammaTable {
+    private static final double GAMMA = 2.2;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            TABLE[i] = (int) Math.round(255 * Math.pow(i / 255.0, GAMMA));
+        }
+    }
+
+    private GammaTable() {}
+
+    /** Corrects the red, green and blue channels of an ARGB color, leaving alpha untouched. */
+    static int correct(int color) {
+        return (color & 0xff000000)
+                | TABLE[(color >> 16) & 0xff] << 16
+                | TABLE[(color >> 8) & 0xff] << 8
+                | TABLE[color & 0xff];
+    }
+}
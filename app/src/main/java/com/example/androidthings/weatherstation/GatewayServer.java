@@ -0,0 +1,415 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Gateway mode: accepts readings from nearby stations over TCP and hands them to the
+ * {@link PubsubPublisher} as shared batches, so that a whole deployment goes through one
+ * credential, one HTTPS connection and one publish tick.
+ *
+ * <p>Protocol, big-endian: a station first sends {@code 'H'}, the length of its id as one byte
+ * and the id in UTF-8, then any number of readings, each {@code 'R'}, the sensor type as one
+ * byte, the wall-clock time in milliseconds as a long and the value as a float. Anything else
+ * closes the connection. Readings whose value is NaN or infinite are counted as dropped, since
+ * the payload JSON cannot carry them.
+ *
+ * <p>Memory is bounded: at most {@link #MAX_SOURCES} connections, fewer if the
+ * {@link MemoryBudget} share says so, are accepted and each one
+ * queues at most {@link #SOURCE_QUEUE_CAPACITY} readings, dropping its own oldest when full, so
+ * a chatty station cannot crowd out the others. Batches are filled round-robin, a few readings
+ * per station at a time, starting after the last station served by the previous batch. Readings
+ * are only copied out under the lock; the JSON is built after releasing it, so the selector
+ * thread is never held up by a batch.
+ */
+class GatewayServer implements PubsubPublisher.PayloadSource, MemoryBudget.MemoryConsumer {
+    private static final String TAG = GatewayServer.class.getSimpleName();
+
+    static final byte FRAME_HELLO = 'H';
+    static final byte FRAME_READING = 'R';
+    static final int READING_FRAME_SIZE = 1 + 1 + 8 + 4;
+
+    static final int MAX_SOURCES = 4096;
+    static final int SOURCE_QUEUE_CAPACITY = 64;
+    static final int MAX_READINGS_PER_BATCH = 4000;
+    private static final int READINGS_PER_ROUND = 4;
+    private static final int RECEIVE_BUFFER_SIZE = 512;
+    private static final int ACCEPT_BACKLOG = 256;
+    // Receive buffer and queue of one station, plus object overhead.
+    static final int SOURCE_BYTES = RECEIVE_BUFFER_SIZE + SOURCE_QUEUE_CAPACITY * (4 + 8 + 4) + 128;
+
+    private final Selector mSelector;
+    private final ServerSocketChannel mServerChannel;
+    private final Thread mThread;
+    private volatile boolean mClosed;
+    private volatile int mMaxSources = MAX_SOURCES;
+    // Number of stations to shed down to on the selector thread, or -1.
+    private volatile int mShedTarget = -1;
+
+    // Modified on the selector thread, drained on the publisher thread.
+    private final List<Source> mSources = new ArrayList<>();
+    private int mCursor;
+    private long mReceived;
+    private long mDropped;
+    private long mRefused;
+
+    // Readings of the batch being built, copied out of the queues. Guarded by mBatchLock.
+    private final Object mBatchLock = new Object();
+    private final String[] mBatchIds = new String[MAX_READINGS_PER_BATCH];
+    private final int[] mBatchTypes = new int[MAX_READINGS_PER_BATCH];
+    private final long[] mBatchTimestamps = new long[MAX_READINGS_PER_BATCH];
+    private final float[] mBatchValues = new float[MAX_READINGS_PER_BATCH];
+
+    GatewayServer(int port) throws IOException {
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.configureBlocking(false);
+        mServerChannel.socket().bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        mThread = Worker.NETWORK_IO.newThread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "gatewayServer");
+    }
+
+    /** Port the server listens on, useful when constructed with port 0. */
+    int getPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    void close() {
+        mClosed = true;
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            for (SelectionKey key : mSelector.keys()) {
+                key.channel().close();
+            }
+            mSelector.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing gateway", e);
+        }
+        Log.d(TAG, "Gateway received " + mReceived + " readings, dropped " + mDropped
+                + ", refused " + mRefused + " stations");
+    }
+
+    /** Accepts only as many stations as {@code bytes} of queues can hold. */
+    void setHeapLimit(long bytes) {
+        mMaxSources = (int) Math.max(1, Math.min(MAX_SOURCES, bytes / SOURCE_BYTES));
+    }
+
+    @Override
+    public synchronized long getHeapBytes() {
+        return (long) mSources.size() * SOURCE_BYTES;
+    }
+
+    @Override
+    public long getDiskBytes() {
+        return 0;
+    }
+
+    /** Disconnects the most recently connected stations; they will retry, and resend. */
+    @Override
+    public void trimTo(long heapBytes, long diskBytes) {
+        mShedTarget = (int) Math.min(MAX_SOURCES, heapBytes / SOURCE_BYTES);
+        mSelector.wakeup();
+    }
+
+    synchronized int getSourceCount() {
+        return mSources.size();
+    }
+
+    synchronized long getReceivedReadings() {
+        return mReceived;
+    }
+
+    /**
+     * Readings that never made it into a batch: overflowed, not finite, or still queued when
+     * their station disconnected.
+     */
+    synchronized long getDroppedReadings() {
+        return mDropped;
+    }
+
+    /** Connections turned away because the station limit was reached. */
+    synchronized long getRefusedStations() {
+        return mRefused;
+    }
+
+    /**
+     * Moves up to {@link #MAX_READINGS_PER_BATCH} queued readings into a payload of the form
+     * {@code {"stations": {"<id>": {"s": [types], "dt": [ms], "v": [values]}}}}, with each
+     * {@code dt} relative to {@code timestamp}. Returns null when nothing is queued.
+     */
+    @Override
+    public JSONObject createPayload(String deviceId) throws JSONException {
+        synchronized (mBatchLock) {
+            long baseMs = Long.MAX_VALUE;
+            int count = 0;
+            synchronized (this) {
+                int sourceCount = mSources.size();
+                for (int i = 0; i < sourceCount; i++) {
+                    baseMs = Math.min(baseMs, mSources.get(i).getFirstTimestamp());
+                }
+                if (baseMs == Long.MAX_VALUE) {
+                    return null;
+                }
+                int idle = 0;
+                while (count < MAX_READINGS_PER_BATCH && idle < sourceCount) {
+                    Source source = mSources.get(mCursor % sourceCount);
+                    mCursor = (mCursor + 1) % sourceCount;
+                    int taken = source.drainTo(count,
+                            Math.min(READINGS_PER_ROUND, MAX_READINGS_PER_BATCH - count));
+                    count += taken;
+                    idle = taken == 0 ? idle + 1 : 0;
+                }
+            }
+            JSONObject stations = new JSONObject();
+            for (int i = 0; i < count; i++) {
+                JSONObject station = stations.optJSONObject(mBatchIds[i]);
+                if (station == null) {
+                    station = new JSONObject();
+                    station.put("s", new JSONArray());
+                    station.put("dt", new JSONArray());
+                    station.put("v", new JSONArray());
+                    stations.put(mBatchIds[i], station);
+                }
+                station.getJSONArray("s").put(mBatchTypes[i]);
+                station.getJSONArray("dt").put(mBatchTimestamps[i] - baseMs);
+                station.getJSONArray("v").put(Float.valueOf(mBatchValues[i]));
+                mBatchIds[i] = null;
+            }
+            JSONObject messagePayload = new JSONObject();
+            messagePayload.put("deviceId", deviceId);
+            messagePayload.put("channel", "gateway");
+            messagePayload.put("timestamp", baseMs);
+            messagePayload.put("stations", stations);
+            return messagePayload;
+        }
+    }
+
+    private void loop() {
+        while (!mClosed) {
+            try {
+                mSelector.select();
+            } catch (IOException e) {
+                Log.e(TAG, "Gateway selector failed", e);
+                return;
+            }
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                } else if (key.isReadable()) {
+                    read(key);
+                }
+            }
+            if (mShedTarget >= 0) {
+                shed(mShedTarget);
+                mShedTarget = -1;
+            }
+        }
+    }
+
+    private void shed(int target) {
+        while (true) {
+            Source source;
+            synchronized (this) {
+                if (mSources.size() <= target) {
+                    return;
+                }
+                source = mSources.get(mSources.size() - 1);
+            }
+            disconnect(source.mKey, source);
+        }
+    }
+
+    // Takes every pending connection, so that a burst of stations is not limited by the backlog.
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = mServerChannel.accept()) != null) {
+                // Counts stations that have not said hello yet, but also the server socket.
+                if (mSelector.keys().size() > mMaxSources) {
+                    EventTrace.record(TraceEvents.GATEWAY_REFUSED, mSelector.keys().size() - 1);
+                    synchronized (this) {
+                        mRefused++;
+                    }
+                    channel.close();
+                    continue;
+                }
+                channel.configureBlocking(false);
+                Source source = new Source();
+                source.mKey = channel.register(mSelector, SelectionKey.OP_READ, source);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error accepting station", e);
+        }
+    }
+
+    private void read(SelectionKey key) {
+        Source source = (Source) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (channel.read(source.mReceiveBuffer) < 0 || !parse(source)) {
+                disconnect(key, source);
+            }
+        } catch (IOException e) {
+            disconnect(key, source);
+        }
+    }
+
+    // Consumes every complete frame in the receive buffer. Returns false on a protocol error.
+    private boolean parse(Source source) {
+        ByteBuffer in = source.mReceiveBuffer;
+        in.flip();
+        try {
+            while (in.remaining() > 0) {
+                byte frame = in.get(in.position());
+                if (frame == FRAME_READING && source.mId != null) {
+                    if (in.remaining() < READING_FRAME_SIZE) {
+                        break;
+                    }
+                    in.get();
+                    int sensorType = in.get() & 0xFF;
+                    long timestampMs = in.getLong();
+                    float value = in.getFloat();
+                    source.add(sensorType, timestampMs, value);
+                } else if (frame == FRAME_HELLO && source.mId == null) {
+                    if (in.remaining() < 2 || in.remaining() < 2 + (in.get(in.position() + 1)
+                            & 0xFF)) {
+                        break;
+                    }
+                    in.get();
+                    byte[] id = new byte[in.get() & 0xFF];
+                    in.get(id);
+                    source.mId = new String(id, StandardCharsets.UTF_8);
+                    synchronized (this) {
+                        mSources.add(source);
+                    }
+                } else {
+                    EventTrace.record(TraceEvents.GATEWAY_PROTOCOL_ERROR, frame);
+                    return false;
+                }
+            }
+        } finally {
+            in.compact();
+        }
+        return true;
+    }
+
+    private void disconnect(SelectionKey key, Source source) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already gone.
+        }
+        // Whatever it had queued is lost with it; stations are expected to resend.
+        int remaining;
+        synchronized (this) {
+            if (mSources.remove(source)) {
+                mDropped += source.mCount;
+                source.mCount = 0;
+            }
+            remaining = mSources.size();
+        }
+        EventTrace.record(TraceEvents.GATEWAY_DISCONNECTED, remaining);
+    }
+
+    /** One connected station and its bounded queue of readings. */
+    private class Source {
+        final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+        final int[] mTypes = new int[SOURCE_QUEUE_CAPACITY];
+        final long[] mTimestamps = new long[SOURCE_QUEUE_CAPACITY];
+        final float[] mValues = new float[SOURCE_QUEUE_CAPACITY];
+        SelectionKey mKey;
+        String mId;
+        int mStart;
+        int mCount;
+
+        void add(int sensorType, long timestampMs, float value) {
+            synchronized (GatewayServer.this) {
+                mReceived++;
+                if (Float.isNaN(value) || Float.isInfinite(value)) {
+                    mDropped++;
+                    return;
+                }
+                if (mCount == SOURCE_QUEUE_CAPACITY) {
+                    mStart = (mStart + 1) % SOURCE_QUEUE_CAPACITY;
+                    mCount--;
+                    mDropped++;
+                }
+                int i = (mStart + mCount) % SOURCE_QUEUE_CAPACITY;
+                mTypes[i] = sensorType;
+                mTimestamps[i] = timestampMs;
+                mValues[i] = value;
+                mCount++;
+            }
+        }
+
+        long getFirstTimestamp() {
+            return mCount == 0 ? Long.MAX_VALUE : mTimestamps[mStart];
+        }
+
+        /** Moves up to {@code max} readings into the batch arrays at {@code offset}. */
+        int drainTo(int offset, int max) {
+            int n = Math.min(mCount, max);
+            for (int k = 0; k < n; k++) {
+                mBatchIds[offset + k] = mId;
+                mBatchTypes[offset + k] = mTypes[mStart];
+                mBatchTimestamps[offset + k] = mTimestamps[mStart];
+                mBatchValues[offset + k] = mValues[mStart];
+                mStart = (mStart + 1) % SOURCE_QUEUE_CAPACITY;
+            }
+            mCount -= n;
+            return n;
+        }
+    }
+}
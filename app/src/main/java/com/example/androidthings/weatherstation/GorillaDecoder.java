@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Decodes blocks written by {@link GorillaEncoder}. Plain Java, so that uploaded blocks can be
+ * decoded on a host as well.
+ */
+class GorillaDecoder {
+    private int mTimeUnitMs;
+    private SampleScale mScale;
+    private int mMin;
+    private int mMax;
+
+    /**
+     * Decodes one block into {@code timestampsMs} and {@code values}, which must have room for
+     * the whole block, and returns its sample count. The values are steps of {@link #getScale()}.
+     */
+    int decode(BitReader in, long[] timestampsMs, int[] values) {
+        int count = (int) in.readBits(16);
+        if (count > timestampsMs.length || count > values.length) {
+            throw new IllegalArgumentException("Block of " + count + " samples does not fit");
+        }
+        mTimeUnitMs = (int) in.readBits(16);
+        int decimals = (int) in.readBits(8);
+        int step = (int) in.readBits(16);
+        int offset = (int) in.readBits(32);
+        mScale = new SampleScale(decimals, step, offset);
+        mMin = (int) in.readBits(32);
+        mMax = (int) in.readBits(32);
+
+        long timestamp = in.readBits(64);
+        int value = (int) in.readBits(32);
+        long delta = 0;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                delta += readDelta(in);
+                timestamp += delta;
+                value += (int) readDelta(in);
+            }
+            timestampsMs[i] = timestamp * mTimeUnitMs;
+            values[i] = value;
+        }
+        in.alignToByte();
+        return count;
+    }
+
+    /** Scale of the values of the last decoded block. */
+    SampleScale getScale() {
+        return mScale;
+    }
+
+    /** Smallest value of the last decoded block, in steps. */
+    int getMin() {
+        return mMin;
+    }
+
+    /** Largest value of the last decoded block, in steps. */
+    int getMax() {
+        return mMax;
+    }
+
+    private static long readDelta(BitReader in) {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (!in.readBit()) {
+            return in.readBits(4) - 7;
+        }
+        if (!in.readBit()) {
+            return in.readBits(9) - 255;
+        }
+        if (!in.readBit()) {
+            return in.readBits(12) - 2047;
+        }
+        return in.readBits(64);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Encodes a series of timestamped fixed-point samples into a compressed block, after Facebook's
+ * Gorilla time series format: timestamps as deltas of deltas, values as the delta to the
+ * previous value. Slowly changing weather data comes down to one or two bits per sample.
+ *
+ * <p>Block layout, all through {@link BitWriter}:
+ * <ul>
+ * <li>Header: sample count (16 bits), time unit in milliseconds (16), the {@link SampleScale} as
+ * decimals (8), step (16) and offset (32), minimum and maximum value (32 each), first timestamp
+ * in time units (64) and first value (32).</li>
+ * <li>Each further timestamp: the delta of deltas, and each further value: the delta, both as
+ * {@code 0}, {@code 10} + 4 bits, {@code 110} + 9 bits, {@code 1110} + 12 bits or
+ * {@code 1111} + 64 bits.</li>
+ * </ul>
+ *
+ * <p>Values are the quantized steps of {@link SampleSeries}, so nothing is rounded here apart
+ * from timestamps to the time unit. A block ends on a byte boundary. Instances are reusable and
+ * allocate nothing.
+ */
+class GorillaEncoder {
+    private final int mTimeUnitMs;
+
+    private BitWriter mOut;
+    private int mRemaining;
+    private boolean mFirst;
+    private long mPreviousTimestamp;
+    private long mPreviousDelta;
+    private int mPreviousValue;
+
+    GorillaEncoder(int timeUnitMs) {
+        mTimeUnitMs = timeUnitMs;
+    }
+
+    /** Starts a block of exactly {@code count} samples, at most 65535, within [min, max]. */
+    void begin(BitWriter out, int count, SampleScale scale, int min, int max) {
+        if (count <= 0 || count > 0xFFFF) {
+            throw new IllegalArgumentException("Block must hold 1 to 65535 samples: " + count);
+        }
+        mOut = out;
+        mRemaining = count;
+        mFirst = true;
+        out.writeBits(count, 16);
+        out.writeBits(mTimeUnitMs, 16);
+        out.writeBits(scale.getDecimals(), 8);
+        out.writeBits(scale.getStep(), 16);
+        out.writeBits(scale.getOffset(), 32);
+        out.writeBits(min, 32);
+        out.writeBits(max, 32);
+    }
+
+    void add(long timestampMs, int value) {
+        if (mRemaining == 0) {
+            throw new IllegalStateException("Block is already complete");
+        }
+        long timestamp = Math.round((double) timestampMs / mTimeUnitMs);
+        if (mFirst) {
+            mOut.writeBits(timestamp, 64);
+            mOut.writeBits(value, 32);
+            mPreviousDelta = 0;
+            mFirst = false;
+        } else {
+            long delta = timestamp - mPreviousTimestamp;
+            writeDelta(delta - mPreviousDelta);
+            mPreviousDelta = delta;
+            writeDelta((long) value - mPreviousValue);
+        }
+        mPreviousTimestamp = timestamp;
+        mPreviousValue = value;
+        if (--mRemaining == 0) {
+            mOut.alignToByte();
+        }
+    }
+
+    private void writeDelta(long delta) {
+        if (delta == 0) {
+            mOut.writeBits(0, 1);
+        } else if (delta >= -7 && delta <= 8) {
+            mOut.writeBits(0x2, 2);
+            mOut.writeBits(delta + 7, 4);
+        } else if (delta >= -255 && delta <= 256) {
+            mOut.writeBits(0x6, 3);
+            mOut.writeBits(delta + 255, 9);
+        } else if (delta >= -2047 && delta <= 2048) {
+            mOut.writeBits(0xE, 4);
+            mOut.writeBits(delta + 2047, 12);
+        } else {
+            mOut.writeBits(0xF, 4);
+            mOut.writeBits(delta, 64);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Serializes all traffic on one I2C bus through a single worker thread. Transactions are run in
+ * strict priority order, first in first out within a priority, so a sensor read never waits
+ * behind more than the one display refresh that may already be on the bus.
+ *
+ * <p>A transaction object stays queued at most once: submitting it again while it is still
+ * waiting is a no-op. Peripherals use this to batch writes: they update their state and submit
+ * one reusable transaction that writes whatever the state is by the time it runs.
+ */
+class I2cBusArbiter {
+    private static final String TAG = I2cBusArbiter.class.getSimpleName();
+
+    static final int PRIORITY_SENSOR = 0;
+    static final int PRIORITY_DISPLAY = 1;
+    private static final int PRIORITY_LEVELS = 2;
+
+    abstract static class Transaction {
+        private final int mPriority;
+        // Guarded by the arbiter lock.
+        private boolean mQueued;
+        private long mEnqueuedNanos;
+
+        Transaction(int priority) {
+            if (priority < 0 || priority >= PRIORITY_LEVELS) {
+                throw new IllegalArgumentException("Unknown priority: " + priority);
+            }
+            mPriority = priority;
+        }
+
+        abstract void execute() throws IOException;
+    }
+
+    private final String mBus;
+    private final Object mLock = new Object();
+    private final ArrayDeque<Transaction>[] mQueues;
+    private final Thread mThread;
+    private boolean mClosed;
+
+    // Statistics since the last report, guarded by mLock.
+    private long mStartNanos = System.nanoTime();
+    private long mBusyNanos;
+    private long mCoalesced;
+    private final int[] mMaxQueued = new int[PRIORITY_LEVELS];
+    private final long[] mCompleted = new long[PRIORITY_LEVELS];
+    private final long[] mTotalWaitNanos = new long[PRIORITY_LEVELS];
+    private final long[] mMaxWaitNanos = new long[PRIORITY_LEVELS];
+
+    @SuppressWarnings("unchecked")
+    I2cBusArbiter(String bus) {
+        mBus = bus;
+        mQueues = new ArrayDeque[PRIORITY_LEVELS];
+        for (int i = 0; i < PRIORITY_LEVELS; i++) {
+            mQueues[i] = new ArrayDeque<>();
+        }
+        mThread = Worker.SENSOR_INGEST.newThread(mWorker, "i2cArbiter-" + bus);
+        mThread.start();
+    }
+
+    /** Queues a transaction. Returns false if the arbiter is already closed. */
+    boolean submit(Transaction transaction) {
+        synchronized (mLock) {
+            if (mClosed) {
+                return false;
+            }
+            if (transaction.mQueued) {
+                mCoalesced++;
+                return true;
+            }
+            transaction.mQueued = true;
+            transaction.mEnqueuedNanos = System.nanoTime();
+            ArrayDeque<Transaction> queue = mQueues[transaction.mPriority];
+            queue.addLast(transaction);
+            mMaxQueued[transaction.mPriority] =
+                    Math.max(mMaxQueued[transaction.mPriority], queue.size());
+            mLock.notify();
+            return true;
+        }
+    }
+
+    /** Runs every transaction queued so far, then stops the worker thread. */
+    void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notify();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.d(TAG, getStats());
+    }
+
+    String getBus() {
+        return mBus;
+    }
+
+    /** Fraction of wall time the bus has been busy since the last report. */
+    float getUtilization() {
+        synchronized (mLock) {
+            long elapsed = System.nanoTime() - mStartNanos;
+            return elapsed > 0 ? (float) mBusyNanos / elapsed : 0.f;
+        }
+    }
+
+    long getMeanWaitNanos(int priority) {
+        synchronized (mLock) {
+            long completed = mCompleted[priority];
+            return completed > 0 ? mTotalWaitNanos[priority] / completed : 0;
+        }
+    }
+
+    long getMaxWaitNanos(int priority) {
+        synchronized (mLock) {
+            return mMaxWaitNanos[priority];
+        }
+    }
+
+    String getStats() {
+        synchronized (mLock) {
+            return String.format(Locale.US,
+                    "bus utilization %.1f%%, coalesced %d, sensor wait mean/max %d/%d us, "
+                            + "display wait mean/max %d/%d us",
+                    100.f * getUtilization(), mCoalesced,
+                    getMeanWaitNanos(PRIORITY_SENSOR) / 1000,
+                    mMaxWaitNanos[PRIORITY_SENSOR] / 1000,
+                    getMeanWaitNanos(PRIORITY_DISPLAY) / 1000,
+                    mMaxWaitNanos[PRIORITY_DISPLAY] / 1000);
+        }
+    }
+
+    /**
+     * Returns the statistics since the last report as {@code {"utilization": .., "coalesced": ..,
+     * "sensor": {"queued": .., "maxQueued": .., "completed": .., "meanWaitUs": ..,
+     * "maxWaitUs": ..}, "display": {...}}} and starts a new report.
+     */
+    JSONObject toJson() throws JSONException {
+        synchronized (mLock) {
+            JSONObject json = new JSONObject();
+            json.put("utilization", getUtilization());
+            json.put("coalesced", mCoalesced);
+            json.put("sensor", priorityToJson(PRIORITY_SENSOR));
+            json.put("display", priorityToJson(PRIORITY_DISPLAY));
+            mStartNanos = System.nanoTime();
+            mBusyNanos = 0;
+            mCoalesced = 0;
+            for (int i = 0; i < PRIORITY_LEVELS; i++) {
+                mMaxQueued[i] = mQueues[i].size();
+                mCompleted[i] = 0;
+                mTotalWaitNanos[i] = 0;
+                mMaxWaitNanos[i] = 0;
+            }
+            return json;
+        }
+    }
+
+    private JSONObject priorityToJson(int priority) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("queued", mQueues[priority].size());
+        json.put("maxQueued", mMaxQueued[priority]);
+        json.put("completed", mCompleted[priority]);
+        json.put("meanWaitUs", getMeanWaitNanos(priority) / 1000);
+        json.put("maxWaitUs", mMaxWaitNanos[priority] / 1000);
+        return json;
+    }
+
+    private Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Transaction transaction = null;
+                synchronized (mLock) {
+                    while (transaction == null) {
+                        for (ArrayDeque<Transaction> queue : mQueues) {
+                            transaction = queue.pollFirst();
+                            if (transaction != null) {
+                                break;
+                            }
+                        }
+                        if (transaction != null) {
+                            break;
+                        }
+                        if (mClosed) {
+                            return;
+                        }
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    transaction.mQueued = false;
+                    long wait = System.nanoTime() - transaction.mEnqueuedNanos;
+                    int priority = transaction.mPriority;
+                    mCompleted[priority]++;
+                    mTotalWaitNanos[priority] += wait;
+                    mMaxWaitNanos[priority] = Math.max(mMaxWaitNanos[priority], wait);
+                }
+                long start = System.nanoTime();
+                try {
+                    transaction.execute();
+                } catch (IOException e) {
+                    Log.e(TAG, "I2C transaction failed", e);
+                }
+                long busy = System.nanoTime() - start;
+                synchronized (mLock) {
+                    mBusyNanos += busy;
+                }
+            }
+        }
+    };
+}
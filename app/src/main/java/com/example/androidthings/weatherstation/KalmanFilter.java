@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Scalar Kalman filter for a slowly varying quantity observed with noise. Only the ratio of
+ * process noise to measurement noise matters for the steady state gain, so the same settings
+ * work for both temperature and pressure.
+ */
+class KalmanFilter implements SensorFilter {
+    private final float mProcessNoise;
+    private final float mMeasurementNoise;
+    private float mEstimate = Float.NaN;
+    private float mErrorCovariance;
+
+    KalmanFilter(float processNoise, float measurementNoise) {
+        if (processNoise <= 0.f || measurementNoise <= 0.f) {
+            throw new IllegalArgumentException("noise parameters must be positive");
+        }
+        mProcessNoise = processNoise;
+        mMeasurementNoise = measurementNoise;
+    }
+
+    @Override
+    public float apply(float value) {
+        if (Float.isNaN(mEstimate)) {
+            mEstimate = value;
+            mErrorCovariance = mMeasurementNoise;
+            return mEstimate;
+        }
+        float predictedCovariance = mErrorCovariance + mProcessNoise;
+        float gain = predictedCovariance / (predictedCovariance + mMeasurementNoise);
+        mEstimate += gain * (value - mEstimate);
+        mErrorCovariance = (1.f - gain) * predictedCovariance;
+        return mEstimate;
+    }
+
+    @Override
+    public void reset() {
+        mEstimate = Float.NaN;
+        mErrorCovariance = 0.f;
+    }
+}
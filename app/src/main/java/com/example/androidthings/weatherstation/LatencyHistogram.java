@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Histogram with power-of-two buckets: bucket 0 counts zeros, bucket {@code i} counts values in
+ * [2<sup>i-1</sup>, 2<sup>i</sup>). Fixed size, so recording never allocates; percentiles are
+ * reported as the upper bound of their bucket, capped at the largest value seen.
+ */
+class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount;
+    private long mMax;
+
+    synchronized void record(long value) {
+        value = Math.max(0, value);
+        mCounts[64 - Long.numberOfLeadingZeros(value)]++;
+        mCount++;
+        mMax = Math.max(mMax, value);
+    }
+
+    synchronized long getCount() {
+        return mCount;
+    }
+
+    synchronized long getMax() {
+        return mMax;
+    }
+
+    /** Upper bound of the bucket holding the {@code fraction} quantile, 0 if empty. */
+    synchronized long getPercentile(double fraction) {
+        long rank = (long) Math.ceil(fraction * mCount);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : Math.min(mMax, (1L << i) - 1);
+            }
+        }
+        return mMax;
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mMax = 0;
+    }
+
+    /** {@code {"count": n, "p50": .., "p90": .., "p99": .., "max": ..}}. */
+    synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("count", mCount);
+        json.put("p50", getPercentile(0.5));
+        json.put("p90", getPercentile(0.9));
+        json.put("p99", getPercentile(0.99));
+        json.put("max", mMax);
+        return json;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A led strip animation compiled from keyframes into a packed table of gamma corrected frames,
+ * {@code ledCount} ints per frame. All interpolation happens once in {@link Builder#build()};
+ * playing the animation back is a plain array copy per frame.
+ */
+final class LedAnimation {
+
+    enum Easing {
+        STEP,
+        LINEAR,
+        EASE_IN_OUT;
+
+        float apply(float t) {
+            switch (this) {
+                case STEP:
+                    return 0.f;
+                case EASE_IN_OUT:
+                    return t * t * (3.f - 2.f * t);
+                default:
+                    return t;
+            }
+        }
+    }
+
+    private final int mLedCount;
+    private final int mFrameCount;
+    private final long mFrameNanos;
+    private final int[] mFrames;
+
+    private LedAnimation(int ledCount, int frameCount, long frameNanos, int[] frames) {
+        mLedCount = ledCount;
+        mFrameCount = frameCount;
+        mFrameNanos = frameNanos;
+        mFrames = frames;
+    }
+
+    int getLedCount() {
+        return mLedCount;
+    }
+
+    int getFrameCount() {
+        return mFrameCount;
+    }
+
+    long getFrameNanos() {
+        return mFrameNanos;
+    }
+
+    void copyFrame(int frame, int[] out) {
+        System.arraycopy(mFrames, frame * mLedCount, out, 0, mLedCount);
+    }
+
+    static class Builder {
+        private final int mLedCount;
+        private final List<Long> mTimes = new ArrayList<>();
+        private final List<int[]> mColors = new ArrayList<>();
+        private int mFps = 60;
+        private Easing mEasing = Easing.LINEAR;
+
+        Builder(int ledCount) {
+            mLedCount = ledCount;
+        }
+
+        Builder setFps(int fps) {
+            mFps = fps;
+            return this;
+        }
+
+        Builder setEasing(Easing easing) {
+            mEasing = easing;
+            return this;
+        }
+
+        /**
+         * Adds a keyframe. Keyframes must be added in time order; the last one marks the end of
+         * the animation and is not itself played, so a looping animation should end on a copy of
+         * its first keyframe.
+         */
+        Builder addKeyframe(long timeMs, int... colors) {
+            if (colors.length != mLedCount) {
+                throw new IllegalArgumentException("expected " + mLedCount + " colors");
+            }
+            if (!mTimes.isEmpty() && timeMs <= mTimes.get(mTimes.size() - 1)) {
+                throw new IllegalArgumentException("keyframes must be in time order");
+            }
+            mTimes.add(timeMs);
+            mColors.add(colors.clone());
+            return this;
+        }
+
+        LedAnimation build() {
+            if (mTimes.size() < 2) {
+                throw new IllegalStateException("an animation needs at least two keyframes");
+            }
+            long durationMs = mTimes.get(mTimes.size() - 1) - mTimes.get(0);
+            int frameCount = (int) Math.max(1, durationMs * mFps / 1000);
+            int[] frames = new int[frameCount * mLedCount];
+            int key = 0;
+            for (int frame = 0; frame < frameCount; frame++) {
+                long timeMs = mTimes.get(0) + frame * 1000L / mFps;
+                while (mTimes.get(key + 1) <= timeMs) {
+                    key++;
+                }
+                long start = mTimes.get(key);
+                float t = mEasing.apply((float) (timeMs - start) / (mTimes.get(key + 1) - start));
+                int[] from = mColors.get(key);
+                int[] to = mColors.get(key + 1);
+                for (int led = 0; led < mLedCount; led++) {
+                    frames[frame * mLedCount + led] =
+                            GammaTable.correct(interpolate(from[led], to[led], t));
+                }
+            }
+            return new LedAnimation(mLedCount, frameCount, 1000000000L / mFps, frames);
+        }
+
+        private static int interpolate(int from, int to, float t) {
+            int color = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                int a = (from >>> shift) & 0xff;
+                int b = (to >>> shift) & 0xff;
+                color |= Math.round(a + (b - a) * t) << shift;
+            }
+            return color;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.util.Log;
+
+import com.google.android.things.contrib.driver.apa102.Apa102;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Owns the led strip: every write goes through here. Plays {@link LedAnimation}s from a dedicated
+ * render thread and shows a static frame whenever no animation plays. Frames are paced against
+ * absolute deadlines, so a slow SPI write drops frames instead of slowing the animation down,
+ * and each render thread reuses one frame buffer so it does not allocate.
+ *
+ * <p>A one-shot animation played over a looping one, such as a fault flash, hands the strip
+ * back to the looping animation when it ends; otherwise to the static frame.
+ */
+class LedAnimator {
+    private static final String TAG = LedAnimator.class.getSimpleName();
+
+    // Frames are 17 ms apart; a render thread that has not drawn for this long is stuck.
+    static final long HEARTBEAT_DEADLINE_MS = 2000;
+    // How long stop() waits for the render thread. A thread stuck in an SPI write is abandoned
+    // rather than blocking the caller; it exits once the write returns, without writing again.
+    private static final long JOIN_TIMEOUT_MS = 500;
+
+    private final Apa102 mLedstrip;
+    private final int mLedCount;
+    // Shown while no animation plays; guarded by this. A render thread copies it into its own
+    // frame buffer before writing it.
+    private final int[] mIdleFrame;
+    private int mIdleGeneration;
+
+    private volatile Thread mThread;
+    private volatile Watchdog.Heartbeat mHeartbeat;
+    private volatile LedAnimation mAnimation;
+    private volatile boolean mLoop;
+    // Looping animation to go back to once the one-shot playing over it ends. Guarded by this.
+    private LedAnimation mResumeAnimation;
+    private volatile long mDroppedFrames;
+
+    LedAnimator(Apa102 ledstrip, int ledCount) {
+        mLedstrip = ledstrip;
+        mLedCount = ledCount;
+        mIdleFrame = new int[ledCount];
+    }
+
+    /**
+     * Plays {@code animation} in place of the current one. A one-shot played over a looping
+     * animation resumes it when done.
+     */
+    public synchronized void play(LedAnimation animation, boolean loop) {
+        if (animation.getLedCount() != mLedCount) {
+            throw new IllegalArgumentException("animation is for " + animation.getLedCount()
+                    + " leds, strip has " + mLedCount);
+        }
+        LedAnimation resume = null;
+        if (!loop && mThread != null) {
+            resume = mLoop ? mAnimation : mResumeAnimation;
+        }
+        stopThread();
+        mResumeAnimation = resume;
+        mAnimation = animation;
+        mLoop = loop;
+        mThread = Worker.RENDER.newThread(mRenderLoop, "ledAnimator");
+        mThread.start();
+        Watchdog.Heartbeat heartbeat = mHeartbeat;
+        if (heartbeat != null) {
+            heartbeat.setActive(true);
+        }
+    }
+
+    /**
+     * Sets the frame shown while no animation plays, and shows it right away unless one does.
+     * Copies {@code colors}.
+     */
+    public synchronized void show(int[] colors) {
+        System.arraycopy(colors, 0, mIdleFrame, 0, mLedCount);
+        mIdleGeneration++;
+        if (mThread == null) {
+            write(mIdleFrame);
+        }
+    }
+
+    /** Restarts the current animation, for when the render thread died or got stuck. */
+    public synchronized void restart() {
+        if (mThread != null) {
+            play(mAnimation, mLoop);
+        }
+    }
+
+    /** Beats once per frame while an animation plays, and is inactive otherwise. */
+    public synchronized void setHeartbeat(Watchdog.Heartbeat heartbeat) {
+        heartbeat.setActive(mThread != null && mThread.isAlive());
+        mHeartbeat = heartbeat;
+    }
+
+    /** Stops playback, forgets the static frame and turns all leds off. */
+    public synchronized void stop() {
+        stopThread();
+        mResumeAnimation = null;
+        Arrays.fill(mIdleFrame, 0);
+        mIdleGeneration++;
+        write(mIdleFrame);
+    }
+
+    /** Number of frames skipped because the render loop fell behind schedule. */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    private void stopThread() {
+        Watchdog.Heartbeat heartbeat = mHeartbeat;
+        if (heartbeat != null) {
+            heartbeat.setActive(false);
+        }
+        Thread thread = mThread;
+        if (thread == null) {
+            return;
+        }
+        mThread = null;
+        thread.interrupt();
+        try {
+            thread.join(JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            Log.w(TAG, "Abandoning stuck render thread");
+        }
+    }
+
+    private void write(int[] frame) {
+        try {
+            mLedstrip.write(frame);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing led strip", e);
+        }
+    }
+
+    /**
+     * Called on the render thread when its one-shot animation ends. Returns the looping animation
+     * to go on with, or shows the static frame, keeping up with show() calls made meanwhile, and
+     * returns null once the strip is handed back.
+     */
+    private LedAnimation finishOneShot(Thread self, int[] frame) {
+        int writtenGeneration = -1;
+        while (true) {
+            synchronized (this) {
+                if (mThread != self) {
+                    return null;
+                }
+                if (mResumeAnimation != null) {
+                    mAnimation = mResumeAnimation;
+                    mLoop = true;
+                    mResumeAnimation = null;
+                    return mAnimation;
+                }
+                if (writtenGeneration == mIdleGeneration) {
+                    mThread = null;
+                    Watchdog.Heartbeat heartbeat = mHeartbeat;
+                    if (heartbeat != null) {
+                        heartbeat.setActive(false);
+                    }
+                    return null;
+                }
+                System.arraycopy(mIdleFrame, 0, frame, 0, mLedCount);
+                writtenGeneration = mIdleGeneration;
+            }
+            write(frame);
+        }
+    }
+
+    private Runnable mRenderLoop = new Runnable() {
+        @Override
+        public void run() {
+            Thread self = Thread.currentThread();
+            // Never shared with another render thread, which may still be stuck in a write.
+            int[] frame = new int[mLedCount];
+            LedAnimation animation = mAnimation;
+            boolean loop = mLoop;
+            long start = System.nanoTime();
+            long lastTick = -1;
+            while (!self.isInterrupted() && mThread == self) {
+                Watchdog.Heartbeat heartbeat = mHeartbeat;
+                long frameNanos = animation.getFrameNanos();
+                int frameCount = animation.getFrameCount();
+                long tick = (System.nanoTime() - start) / frameNanos;
+                if (!loop && tick >= frameCount) {
+                    animation = finishOneShot(self, frame);
+                    if (animation == null) {
+                        break;
+                    }
+                    loop = true;
+                    start = System.nanoTime();
+                    lastTick = -1;
+                    continue;
+                }
+                if (heartbeat != null) {
+                    heartbeat.beat();
+                }
+                if (tick > lastTick + 1) {
+                    mDroppedFrames += tick - lastTick - 1;
+                }
+                lastTick = tick;
+                animation.copyFrame((int) (tick % frameCount), frame);
+                write(frame);
+                long sleepNanos = start + (tick + 1) * frameNanos - System.nanoTime();
+                if (sleepNanos > 0) {
+                    try {
+                        Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        }
+    };
+}
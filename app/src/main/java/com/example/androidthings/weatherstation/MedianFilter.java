@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Median of the last N samples, good at rejecting single-sample I2C glitches.
+ */
+class MedianFilter implements SensorFilter {
+    private final float[] mWindow;
+    private final float[] mSorted;
+    private int mCount;
+    private int mNext;
+
+    MedianFilter(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("window size must be positive: " + size);
+        }
+        mWindow = new float[size];
+        mSorted = new float[size];
+    }
+
+    @Override
+    public float apply(float value) {
+        mWindow[mNext] = value;
+        mNext = (mNext + 1) % mWindow.length;
+        if (mCount < mWindow.length) {
+            mCount++;
+        }
+        // Insertion sort into the scratch buffer; windows are tiny so this beats anything fancier.
+        for (int i = 0; i < mCount; i++) {
+            float v = mWindow[i];
+            int j = i - 1;
+            while (j >= 0 && mSorted[j] > v) {
+                mSorted[j + 1] = mSorted[j];
+                j--;
+            }
+            mSorted[j + 1] = v;
+        }
+        int mid = mCount / 2;
+        if (mCount % 2 == 1) {
+            return mSorted[mid];
+        }
+        return (mSorted[mid - 1] + mSorted[mid]) / 2.f;
+    }
+
+    @Override
+    public void reset() {
+        mCount = 0;
+        mNext = 0;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Divides the heap and disk our own buffering may use, sized per board by {@link BoardDefaults},
+ * among the components that buffer. Each component sizes itself to its share up front; at
+ * runtime the budget checks actual usage and, when it is over or the system reports memory
+ * pressure, sheds data starting with the lowest {@code PRIORITY_*} consumers.
+ *
+ * <p>The fixed-size structures, the event trace ring and the two state snapshots of the
+ * activity and the publisher service, are taken off the top before the rest is divided.
+ */
+class MemoryBudget {
+    private static final String TAG = MemoryBudget.class.getSimpleName();
+
+    // Shedding order, lowest first.
+    /** Buffers that are simply reallocated when needed again. */
+    static final int PRIORITY_CACHE = 0;
+    /** Recordings and other data only needed for debugging. */
+    static final int PRIORITY_DIAGNOSTICS = 1;
+    /** Readings relayed for other stations, which can resend them. */
+    static final int PRIORITY_RELAY = 2;
+    /** This station's own readings waiting to be uploaded. */
+    static final int PRIORITY_TELEMETRY = 3;
+
+    // Shares of what is left of the budget, in percent. The remaining heap is headroom for
+    // caches, which are not capped but are the first to go.
+    static final int HEAP_SHARE_PUBLISH_QUEUE = 40;
+    static final int HEAP_SHARE_GATEWAY = 50;
+    static final int DISK_SHARE_RECORDING = 100;
+
+    private static final long CHECK_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /** Something that holds memory on the budget's behalf. */
+    interface MemoryConsumer {
+        long getHeapBytes();
+
+        long getDiskBytes();
+
+        /**
+         * Drops data, least valuable first, until at most the given number of bytes is held.
+         * Called from the budget's thread; may complete asynchronously.
+         */
+        void trimTo(long heapBytes, long diskBytes);
+    }
+
+    private static class Entry {
+        final String mName;
+        final int mPriority;
+        final MemoryConsumer mConsumer;
+
+        Entry(String name, int priority, MemoryConsumer consumer) {
+            mName = name;
+            mPriority = priority;
+            mConsumer = consumer;
+        }
+    }
+
+    private final long mHeapBytes;
+    private final long mDiskBytes;
+    // Sorted by ascending priority.
+    private final List<Entry> mEntries = new ArrayList<>();
+    private final Handler mHandler = Worker.BACKGROUND_COMPACTION.getHandler();
+
+    MemoryBudget(long heapBytes, long diskBytes) {
+        mHeapBytes = Math.max(0, heapBytes - EventTrace.HEAP_BYTES - 2 * StateSnapshot.HEAP_BYTES);
+        mDiskBytes = Math.max(0, diskBytes - 2 * StateSnapshot.DISK_BYTES);
+    }
+
+    static MemoryBudget forBoard() {
+        return new MemoryBudget(BoardDefaults.getHeapBudgetBytes(),
+                BoardDefaults.getDiskBudgetBytes());
+    }
+
+    long getHeapShare(int percent) {
+        return mHeapBytes * percent / 100;
+    }
+
+    long getDiskShare(int percent) {
+        return mDiskBytes * percent / 100;
+    }
+
+    synchronized void register(String name, int priority, MemoryConsumer consumer) {
+        int i = 0;
+        while (i < mEntries.size() && mEntries.get(i).mPriority <= priority) {
+            i++;
+        }
+        mEntries.add(i, new Entry(name, priority, consumer));
+    }
+
+    synchronized void unregister(MemoryConsumer consumer) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).mConsumer == consumer) {
+                mEntries.remove(i);
+                return;
+            }
+        }
+    }
+
+    void start() {
+        mHandler.postDelayed(mCheckRunnable, CHECK_INTERVAL_MS);
+    }
+
+    void close() {
+        mHandler.removeCallbacks(mCheckRunnable);
+    }
+
+    synchronized long getHeapUsage() {
+        long total = 0;
+        for (int i = 0; i < mEntries.size(); i++) {
+            total += mEntries.get(i).mConsumer.getHeapBytes();
+        }
+        return total;
+    }
+
+    synchronized long getDiskUsage() {
+        long total = 0;
+        for (int i = 0; i < mEntries.size(); i++) {
+            total += mEntries.get(i).mConsumer.getDiskBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Forwarded from {@code onTrimMemory}: sheds down to three quarters, half or a quarter of
+     * the heap budget depending on how urgent the system says it is.
+     */
+    void onTrimMemory(int level) {
+        final int percent;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            percent = 25;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            percent = 50;
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Not memory pressure, only the UI going away.
+            return;
+        } else {
+            percent = 75;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                shed(getHeapShare(percent), mDiskBytes);
+            }
+        });
+    }
+
+    private Runnable mCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            shed(mHeapBytes, mDiskBytes);
+            mHandler.postDelayed(mCheckRunnable, CHECK_INTERVAL_MS);
+        }
+    };
+
+    /** Trims consumers, lowest priority first, until usage fits the given limits. */
+    private synchronized void shed(long heapLimit, long diskLimit) {
+        long heapExcess = getHeapUsage() - heapLimit;
+        long diskExcess = getDiskUsage() - diskLimit;
+        if (heapExcess <= 0 && diskExcess <= 0) {
+            return;
+        }
+        Log.w(TAG, "Over budget by " + Math.max(0, heapExcess) + " bytes of heap and "
+                + Math.max(0, diskExcess) + " bytes of disk, shedding");
+        for (int i = 0; i < mEntries.size() && (heapExcess > 0 || diskExcess > 0); i++) {
+            Entry entry = mEntries.get(i);
+            long heap = entry.mConsumer.getHeapBytes();
+            long disk = entry.mConsumer.getDiskBytes();
+            long heapKeep = Math.max(0, heap - Math.max(0, heapExcess));
+            long diskKeep = Math.max(0, disk - Math.max(0, diskExcess));
+            if (heapKeep == heap && diskKeep == disk) {
+                continue;
+            }
+            EventTrace.record(TraceEvents.MEMORY_SHED, entry.mPriority,
+                    heap - heapKeep + disk - diskKeep);
+            Log.d(TAG, "Trimming " + entry.mName + " to " + heapKeep + " bytes of heap and "
+                    + diskKeep + " bytes of disk");
+            entry.mConsumer.trimTo(heapKeep, diskKeep);
+            heapExcess -= heap - heapKeep;
+            diskExcess -= disk - diskKeep;
+        }
+    }
+}
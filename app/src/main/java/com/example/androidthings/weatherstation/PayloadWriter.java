@@ -0,0 +1,248 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable JSON writer for publish payloads. Writes straight into a byte buffer that only grows,
+ * so once it has reached the size of a typical batch encoding another one allocates nothing
+ * until {@link #toBase64()} creates the one string the Pub/Sub client needs. Numbers are
+ * formatted by hand instead of through boxing and {@code String.valueOf}.
+ */
+class PayloadWriter {
+    private static final int INITIAL_CAPACITY = 2048;
+    private static final int MAX_DEPTH = 8;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000};
+
+    private byte[] mBuffer = new byte[INITIAL_CAPACITY];
+    private final Base64Encoder mBase64 = new Base64Encoder();
+    private int mLength;
+    // Whether the innermost open object or array already holds an element.
+    private final boolean[] mHasElements = new boolean[MAX_DEPTH];
+    private int mDepth;
+
+    PayloadWriter reset() {
+        mLength = 0;
+        mDepth = 0;
+        return this;
+    }
+
+    int length() {
+        return mLength;
+    }
+
+    /** Bytes held by the buffers, which only grow until {@link #trim()}. */
+    int capacity() {
+        return mBuffer.length + mBase64.capacity();
+    }
+
+    /** Releases grown buffers. Only between payloads. */
+    void trim() {
+        if (mBuffer.length > INITIAL_CAPACITY) {
+            mBuffer = new byte[INITIAL_CAPACITY];
+        }
+        mLength = 0;
+        mDepth = 0;
+        mBase64.trim();
+    }
+
+    PayloadWriter beginObject() {
+        return open('{');
+    }
+
+    PayloadWriter endObject() {
+        return close('}');
+    }
+
+    PayloadWriter beginArray() {
+        return open('[');
+    }
+
+    PayloadWriter endArray() {
+        return close(']');
+    }
+
+    /** Writes an object key. Keys and string values must be ASCII. */
+    PayloadWriter name(String name) {
+        separate();
+        writeQuoted(name);
+        append(':');
+        // The value that follows must not be preceded by a comma.
+        mHasElements[mDepth - 1] = false;
+        return this;
+    }
+
+    PayloadWriter value(String value) {
+        separate();
+        writeQuoted(value);
+        return this;
+    }
+
+    PayloadWriter value(long value) {
+        separate();
+        writeLong(value);
+        return this;
+    }
+
+    /** Writes {@code units} &times; 10<sup>-decimals</sup> as a decimal number, exactly. */
+    PayloadWriter fixedValue(long units, int decimals) {
+        separate();
+        writeFixed(units, decimals);
+        return this;
+    }
+
+    /** Like {@link #fixedValue} but as a JSON string, for the legacy "data" fields. */
+    PayloadWriter quotedFixedValue(long units, int decimals) {
+        separate();
+        append('"');
+        writeFixed(units, decimals);
+        append('"');
+        return this;
+    }
+
+    /** Returns the payload, Base64 encoded as Pub/Sub expects it. */
+    String toBase64() {
+        return mBase64.encode(mBuffer, mLength);
+    }
+
+    @Override
+    public String toString() {
+        return new String(mBuffer, 0, mLength, StandardCharsets.UTF_8);
+    }
+
+    private PayloadWriter open(char bracket) {
+        separate();
+        append(bracket);
+        mHasElements[mDepth++] = false;
+        return this;
+    }
+
+    private PayloadWriter close(char bracket) {
+        mDepth--;
+        append(bracket);
+        return this;
+    }
+
+    private void separate() {
+        if (mDepth == 0) {
+            return;
+        }
+        if (mHasElements[mDepth - 1]) {
+            append(',');
+        }
+        mHasElements[mDepth - 1] = true;
+    }
+
+    // Escapes what JSON requires and encodes the rest as UTF-8.
+    private void writeQuoted(String s) {
+        append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                append('\\').append(c);
+            } else if (c == '\n') {
+                append('\\').append('n');
+            } else if (c == '\r') {
+                append('\\').append('r');
+            } else if (c == '\t') {
+                append('\\').append('t');
+            } else if (c < 0x20) {
+                append('\\').append('u').append('0').append('0')
+                        .append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+            } else if (c < 0x80) {
+                append(c);
+            } else if (c < 0x800) {
+                appendByte(0xC0 | c >> 6);
+                appendByte(0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                appendByte(0xF0 | codePoint >> 18);
+                appendByte(0x80 | codePoint >> 12 & 0x3F);
+                appendByte(0x80 | codePoint >> 6 & 0x3F);
+                appendByte(0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired, as String.getBytes would encode it.
+                append('?');
+            } else {
+                appendByte(0xE0 | c >> 12);
+                appendByte(0x80 | c >> 6 & 0x3F);
+                appendByte(0x80 | c & 0x3F);
+            }
+        }
+        append('"');
+    }
+
+    private void writeLong(long value) {
+        if (value < 0) {
+            append('-');
+            if (value == Long.MIN_VALUE) {
+                // Cannot be negated; never a real timestamp or delta.
+                value = Long.MAX_VALUE;
+            } else {
+                value = -value;
+            }
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = mLength + digits - 1; i >= mLength; i--) {
+            mBuffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        mLength += digits;
+    }
+
+    private void writeFixed(long scaled, int decimals) {
+        if (scaled < 0) {
+            append('-');
+            scaled = -scaled;
+        }
+        writeLong(scaled / POWERS_OF_TEN[decimals]);
+        if (decimals == 0) {
+            return;
+        }
+        append('.');
+        long fraction = scaled % POWERS_OF_TEN[decimals];
+        for (int d = decimals - 1; d >= 0; d--) {
+            append((char) ('0' + fraction / POWERS_OF_TEN[d] % 10));
+        }
+    }
+
+    // ASCII only; see writeQuoted for everything else.
+    private PayloadWriter append(char c) {
+        return appendByte(c);
+    }
+
+    private PayloadWriter appendByte(int b) {
+        ensureCapacity(1);
+        mBuffer[mLength++] = (byte) b;
+        return this;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            byte[] buffer = new byte[Math.max(mBuffer.length * 2, mLength + extra)];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Where the time between a reading and its Pub/Sub acknowledgement goes. Each stage keeps a
+ * {@link LatencyHistogram} of microseconds, measured on the elapsed realtime clock that
+ * {@code SensorEvent.timestamp} uses, so recording allocates nothing and spans survive deep
+ * sleep. Stages are per sample for ingest, per batch or message for the others.
+ */
+final class PipelineTrace {
+    static final int INGEST = 0;   // SensorEvent timestamp to the sample entering its series
+    static final int BUFFER = 1;   // oldest sample of a batch to the start of its encoding
+    static final int ENCODE = 2;   // building a batch payload
+    static final int QUEUE = 3;    // message queued to the start of the request that delivers it
+    static final int TRANSMIT = 4; // one publish request, token fetch included, failed or not
+    static final int ACK = 5;      // oldest sample of a message to its acknowledgement, in total
+
+    private static final String[] NAMES = new String[] {
+            "ingest",
+            "buffer",
+            "encode",
+            "queue",
+            "transmit",
+            "ack",
+    };
+
+    private static final LatencyHistogram[] STAGES = new LatencyHistogram[NAMES.length];
+
+    static {
+        for (int i = 0; i < STAGES.length; i++) {
+            STAGES[i] = new LatencyHistogram();
+        }
+    }
+
+    private PipelineTrace() {
+    }
+
+    /** The clock all spans are measured on. */
+    static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /** Records a span from {@code startNanos} until now. */
+    static void record(int stage, long startNanos) {
+        record(stage, startNanos, now());
+    }
+
+    static void record(int stage, long startNanos, long endNanos) {
+        STAGES[stage].record((endNanos - startNanos) / 1000L);
+    }
+
+    /** Returns {@code {"<stage>": {...}}} in microseconds since the last call. */
+    static JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        for (int i = 0; i < STAGES.length; i++) {
+            json.put(NAMES[i], STAGES[i].toJson());
+            STAGES[i].reset();
+        }
+        return json;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the Cloud Pub/Sub pipeline apart from {@link WeatherStationActivity}. The service is
+ * started, so it outlives the activity and uploads still queued when the activity is destroyed
+ * are sent, and bound by the activity for the little control traffic there is: alerts, payload
+ * sources, the watchdog and the memory budget. Samples never cross the binder: the activity's
+ * filters offer them to {@link #getSampleRing()}, which the service drains on the network
+ * worker.
+ *
+ * <p>The service runs in the app's process, next to the activity that owns the sensors, so the
+ * ring is plain shared heap. Its unsent state goes into a {@link StateSnapshot} of its own.
+ */
+public class PublisherService extends Service {
+    private static final String TAG = PublisherService.class.getSimpleName();
+
+    private static final String SNAPSHOT_FILE = "publisher.snapshot";
+    private static final int SNAPSHOT_SECTION_PUBLISHER = 1;
+    // Over a minute and a half of both sensors at the fastest sampling interval, so that the
+    // ring rides out a publish request that runs into its timeouts.
+    private static final int RING_CAPACITY = 1024;
+    private static final long RING_DRAIN_INTERVAL_MS = TimeUnit.SECONDS.toMillis(1);
+
+    private static final SampleRing SAMPLES = new SampleRing(RING_CAPACITY);
+
+    /** Handed to clients in the same process. */
+    class LocalBinder extends Binder {
+        PublisherService getService() {
+            return PublisherService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private Handler mMainHandler;
+    private StateSnapshot mSnapshot;
+    private int mCredentialId;
+    private CredentialManager mCredentialManager;
+    private volatile PubsubPublisher mPubsubPublisher;
+    // Set by the bound activity; kept here so that a restarted publisher gets them as well.
+    private final List<PubsubPublisher.PayloadSource> mPayloadSources = new ArrayList<>();
+    private Watchdog.Heartbeat mHeartbeat;
+    private MemoryBudget mMemoryBudget;
+    // Only touched on the network worker.
+    private long mReportedDrops;
+
+    /** Where filtered samples go to be published; one producer thread at a time. */
+    static SampleRing getSampleRing() {
+        return SAMPLES;
+    }
+
+    static boolean hasCredentials(Context context) {
+        return getCredentialId(context) != 0;
+    }
+
+    private static int getCredentialId(Context context) {
+        return context.getResources().getIdentifier("credentials", "raw",
+                context.getPackageName());
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mMainHandler = new Handler(getMainLooper());
+        mCredentialId = getCredentialId(this);
+        if (mCredentialId == 0) {
+            Log.w(TAG, "No cloud credentials, not publishing");
+            stopSelf();
+            return;
+        }
+        try {
+            mSnapshot = new StateSnapshot(new File(getFilesDir(), SNAPSHOT_FILE));
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening state snapshot, starting cold", e);
+            mSnapshot = null;
+        }
+        mCredentialManager = new CredentialManager(this, mCredentialId,
+                BuildConfig.TOKEN_SERVER_URL);
+        mCredentialManager.start();
+        mPubsubPublisher = createPublisher();
+        if (mSnapshot != null) {
+            mSnapshot.register(SNAPSHOT_SECTION_PUBLISHER, mPubsubPublisher.getSnapshotSection());
+            mSnapshot.start();
+        }
+        mPubsubPublisher.start();
+        Worker.NETWORK_IO.getHandler().post(mDrainSamplesRunnable);
+        Log.d(TAG, "Started publisher service");
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mMainHandler.removeCallbacks(mRestartPublisherRunnable);
+        Worker.NETWORK_IO.getHandler().removeCallbacks(mDrainSamplesRunnable);
+        // Take the last snapshot before the publisher goes away.
+        if (mSnapshot != null) {
+            mSnapshot.close();
+            mSnapshot = null;
+        }
+        if (mPubsubPublisher != null) {
+            if (mMemoryBudget != null) {
+                unregisterPublisherMemory(mPubsubPublisher);
+            }
+            mPubsubPublisher.setHeartbeat(null);
+            mPubsubPublisher.close();
+            mPubsubPublisher = null;
+        }
+        if (mCredentialManager != null) {
+            mCredentialManager.close();
+            mCredentialManager = null;
+        }
+    }
+
+    /** Publishes an alert on the express lane, see {@link PubsubPublisher#publishAlert}. */
+    public void publishAlert(String type, String detail) {
+        PubsubPublisher publisher = mPubsubPublisher;
+        if (publisher != null) {
+            publisher.publishAlert(type, detail);
+        }
+    }
+
+    public void addPayloadSource(PubsubPublisher.PayloadSource source) {
+        mPayloadSources.add(source);
+        if (mPubsubPublisher != null) {
+            mPubsubPublisher.addPayloadSource(source);
+        }
+    }
+
+    public void removePayloadSource(PubsubPublisher.PayloadSource source) {
+        mPayloadSources.remove(source);
+        if (mPubsubPublisher != null) {
+            mPubsubPublisher.removePayloadSource(source);
+        }
+    }
+
+    /** Supervises the publisher; a stall should be answered with {@link #restartPublisher()}. */
+    public void setHeartbeat(Watchdog.Heartbeat heartbeat) {
+        mHeartbeat = heartbeat;
+        if (mPubsubPublisher != null) {
+            mPubsubPublisher.setHeartbeat(heartbeat);
+        }
+    }
+
+    /** Moves the publisher's queue and caches to {@code budget}, or off any budget if null. */
+    public void setMemoryBudget(MemoryBudget budget) {
+        if (mPubsubPublisher != null && mMemoryBudget != null) {
+            unregisterPublisherMemory(mPubsubPublisher);
+        }
+        mMemoryBudget = budget;
+        if (mPubsubPublisher != null && mMemoryBudget != null) {
+            registerPublisherMemory(mPubsubPublisher);
+        }
+    }
+
+    /** May be called from any thread, typically the watchdog's. */
+    public void restartPublisher() {
+        mMainHandler.post(mRestartPublisherRunnable);
+    }
+
+    private PubsubPublisher createPublisher() {
+        return new PubsubPublisher(this, "weatherstation",
+                BuildConfig.PROJECT_ID, BuildConfig.PUBSUB_TOPIC,
+                mCredentialManager.getRequestInitializer(), BuildConfig.PAYLOAD_ENCODING);
+    }
+
+    private void registerPublisherMemory(PubsubPublisher publisher) {
+        publisher.setBulkLimit(mMemoryBudget.getHeapShare(MemoryBudget.HEAP_SHARE_PUBLISH_QUEUE));
+        mMemoryBudget.register("publishQueue", MemoryBudget.PRIORITY_TELEMETRY,
+                publisher.getQueueConsumer());
+        mMemoryBudget.register("publishCaches", MemoryBudget.PRIORITY_CACHE,
+                publisher.getCacheConsumer());
+    }
+
+    private void unregisterPublisherMemory(PubsubPublisher publisher) {
+        mMemoryBudget.unregister(publisher.getQueueConsumer());
+        mMemoryBudget.unregister(publisher.getCacheConsumer());
+    }
+
+    // Runs on the network worker, and so stops with it while a request hangs; the ring has room
+    // for that.
+    private final Runnable mDrainSamplesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            PubsubPublisher publisher = mPubsubPublisher;
+            if (publisher != null) {
+                SAMPLES.drainTo(publisher.getSampleListener());
+            }
+            long dropped = SAMPLES.getDropped();
+            if (dropped != mReportedDrops) {
+                Log.w(TAG, "Sample ring full, " + (dropped - mReportedDrops) + " samples dropped");
+                mReportedDrops = dropped;
+            }
+            Worker.NETWORK_IO.getHandler().postDelayed(this, RING_DRAIN_INTERVAL_MS);
+        }
+    };
+
+    private final Runnable mRestartPublisherRunnable = new Runnable() {
+        @Override
+        public void run() {
+            doRestartPublisher();
+        }
+    };
+
+    /**
+     * Replaces a publisher whose thread is stuck, typically in a request that never returns.
+     * The network worker gets a fresh thread, the old one is left to finish or time out on its
+     * own, and everything that ran on it is recreated. Unsent samples and messages move over in
+     * the snapshot format.
+     */
+    private void doRestartPublisher() {
+        PubsubPublisher old = mPubsubPublisher;
+        if (old == null) {
+            return;
+        }
+        old.stop();
+        ByteBuffer state = ByteBuffer.allocate(StateSnapshot.MAX_SECTION_SIZE);
+        old.getSnapshotSection().writeTo(state);
+        state.flip();
+        old.close();
+        mCredentialManager.close();
+        Worker.NETWORK_IO.getHandler().removeCallbacks(mDrainSamplesRunnable);
+        Worker.NETWORK_IO.replaceThread();
+        mCredentialManager = new CredentialManager(this, mCredentialId,
+                BuildConfig.TOKEN_SERVER_URL);
+        mCredentialManager.start();
+        PubsubPublisher publisher = createPublisher();
+        publisher.getSnapshotSection().readFrom(state, 0);
+        if (mMemoryBudget != null) {
+            unregisterPublisherMemory(old);
+            registerPublisherMemory(publisher);
+        }
+        for (int i = 0; i < mPayloadSources.size(); i++) {
+            old.removePayloadSource(mPayloadSources.get(i));
+            publisher.addPayloadSource(mPayloadSources.get(i));
+        }
+        if (mSnapshot != null) {
+            mSnapshot.register(SNAPSHOT_SECTION_PUBLISHER, publisher.getSnapshotSection());
+        }
+        old.setHeartbeat(null);
+        publisher.setHeartbeat(mHeartbeat);
+        mPubsubPublisher = publisher;
+        publisher.start();
+        Worker.NETWORK_IO.getHandler().post(mDrainSamplesRunnable);
+    }
+}
@@ -18,23 +18,21 @@ package com.example.androidthings.weatherstation;
 
 import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 
+import com.google.api.client.auth.oauth2.TokenResponseException;
 import com.google.api.client.extensions.android.http.AndroidHttp;
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.pubsub.Pubsub;
-import com.google.api.services.pubsub.PubsubScopes;
 import com.google.api.services.pubsub.model.PublishRequest;
 import com.google.api.services.pubsub.model.PubsubMessage;
 
@@ -42,14 +40,31 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Collections;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
-// TODO(proppy): move to a service class.
+/**
+ * Batches filtered samples and publishes them, with alerts and other payloads, to Cloud
+ * Pub/Sub. Owned by {@link PublisherService}, so that uploads outlive the activity.
+ */
 class PubsubPublisher {
     private static final String TAG = PubsubPublisher.class.getSimpleName();
 
+    /** Additional telemetry published on the bulk lane, e.g. readings relayed by a gateway. */
+    interface PayloadSource {
+        /** Called on the publisher thread each tick until it returns null. */
+        JSONObject createPayload(String deviceId) throws JSONException;
+    }
+
     private final Context mContext;
     private final String mAppname;
     private final String mTopic;
@@ -57,57 +72,115 @@ class PubsubPublisher {
     private Pubsub mPubsub;
     private HttpTransport mHttpTransport;
 
-    private Handler mHandler;
-    private HandlerThread mHandlerThread;
-
-    private float mLastTemperature = Float.NaN;
-    private float mLastPressure = Float.NaN;
+    // The network worker at the time the publisher was created; see Worker#replaceThread.
+    private final Handler mHandler = Worker.NETWORK_IO.getHandler();
 
     private static final long PUBLISH_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    // Publish ticks land on the same second of every minute on a given station, and on a
+    // different one for each station, rather than wherever the last publish happened to end.
+    private final TickSchedule mPublishSchedule =
+            TickSchedule.forDevice(Build.SERIAL, PUBLISH_INTERVAL_MS);
+    // Two missed ticks, with room for a request that runs into the HTTP timeouts.
+    static final long HEARTBEAT_DEADLINE_MS = 2 * PUBLISH_INTERVAL_MS
+            + TimeUnit.SECONDS.toMillis(30);
+    static final long SAMPLE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final int SERIES_CAPACITY = (int) (2 * PUBLISH_INTERVAL_MS / SAMPLE_INTERVAL_MS);
+
+    private final SampleSeries mTemperatureSeries = new SampleSeries("temperature",
+            SampleScale.TEMPERATURE, SERIES_CAPACITY,
+            TimeUnit.MILLISECONDS.toNanos(SAMPLE_INTERVAL_MS));
+    private final SampleSeries mPressureSeries = new SampleSeries("pressure",
+            SampleScale.PRESSURE, SERIES_CAPACITY,
+            TimeUnit.MILLISECONDS.toNanos(SAMPLE_INTERVAL_MS));
+
+    // Unacknowledged messages per lane, oldest first. Only modified on the network worker, under
+    // mPendingLock so that the state snapshot can read them. Alerts go on the express lane and
+    // skip batching; sensor batches go on the bulk lane.
+    private static final int MAX_PENDING_MESSAGES = 16;
+    // Bulk messages per request adapt to the link, see AimdController; sources are held to a
+    // fixed share per tick.
+    private static final int INITIAL_BULK_MESSAGES_PER_REQUEST = 4;
+    private static final int MAX_SOURCE_MESSAGES_PER_TICK = 4;
+    private static final long EXPRESS_RETRY_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final int STATUS_CODE_TOO_MANY_REQUESTS = 429;
+    // Indexed lists rather than deques so that walking them needs no iterator; they hold at most
+    // MAX_PENDING_MESSAGES entries.
+    private final List<PendingMessage> mExpressPending = new ArrayList<>(MAX_PENDING_MESSAGES);
+    private final List<PendingMessage> mBulkPending = new ArrayList<>(MAX_PENDING_MESSAGES);
+    private final AimdController mBulkWindow = new AimdController(1, MAX_PENDING_MESSAGES,
+            INITIAL_BULK_MESSAGES_PER_REQUEST);
+    private final Object mPendingLock = new Object();
+    // Reused for every payload and publish on the network worker, so that the steady state only
+    // allocates the strings the Pub/Sub client requires and whatever the HTTP transport needs.
+    private static final int MAX_FREE_MESSAGES = 2 * MAX_PENDING_MESSAGES;
+    private final ArrayDeque<PendingMessage> mFreeMessages = new ArrayDeque<>(MAX_FREE_MESSAGES);
+    private final PayloadWriter mWriter = new PayloadWriter();
+    private final List<PubsubMessage> mBatch = new ArrayList<>(MAX_PENDING_MESSAGES);
+    private final PublishRequest mPublishRequest = new PublishRequest().setMessages(mBatch);
+    private String mAckedBelow;
+    private long mAckedBelowValue;
+
+    // Sensor batches are either JSON or, to save uplink volume and flash, compressed blocks:
+    // "WG" and a version byte, then per series a name and a GorillaEncoder block, then an empty
+    // name. Published with an "encoding" attribute so consumers can tell the two apart.
+    static final String ENCODING_JSON = "json";
+    static final String ENCODING_GORILLA = "gorilla";
+    private static final int GORILLA_PAYLOAD_VERSION = 3;
+    // Samples are 10 s apart, so one second resolution keeps nearly every delta of deltas at 0.
+    private static final int GORILLA_TIME_UNIT_MS = 1000;
+    private final String mPayloadEncoding;
+    private final BitWriter mBitWriter = new BitWriter(256);
+    private final Base64Encoder mBase64 = new Base64Encoder();
+    private final GorillaEncoder mGorillaEncoder = new GorillaEncoder(GORILLA_TIME_UNIT_MS);
+    private final SequenceGenerator mSequence;
+    private AckWindow mAckWindow;
+    private final UploadScheduler mUploadScheduler;
+    private final List<PayloadSource> mPayloadSources = new CopyOnWriteArrayList<>();
+    private volatile Watchdog.Heartbeat mHeartbeat;
+    // Whether the publish tick is armed, i.e. the network is up. Set on the network worker.
+    private volatile boolean mTicking;
+    // Bytes of bulk messages kept while they cannot be sent, see MemoryBudget.
+    private volatile long mBulkLimitBytes = Long.MAX_VALUE;
 
     PubsubPublisher(Context context, String appname, String project, String topic,
-                    int credentialResourceId) throws IOException {
+                    final HttpRequestInitializer requestInitializer, String payloadEncoding) {
         mContext = context;
+        mPayloadEncoding = payloadEncoding;
         mAppname = appname;
         mTopic = "projects/" + project + "/topics/" + topic;
+        mSequence = new SequenceGenerator(context);
+        mAckWindow = new AckWindow(mSequence.getStart());
 
-        mHandlerThread = new HandlerThread("pubsubPublisherThread");
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
+        mUploadScheduler = new UploadScheduler(context, mHandler, mOnlineRunnable,
+                mOfflineRunnable);
 
-        InputStream jsonCredentials = mContext.getResources().openRawResource(credentialResourceId);
-        final GoogleCredential credentials;
-        try {
-            credentials = GoogleCredential.fromStream(jsonCredentials).createScoped(
-                    Collections.singleton(PubsubScopes.PUBSUB));
-        } finally {
-            try {
-                jsonCredentials.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing input stream", e);
-            }
-        }
         mHandler.post(new Runnable() {
             @Override
             public void run() {
                 mHttpTransport = AndroidHttp.newCompatibleTransport();
                 JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
-                mPubsub = new Pubsub.Builder(mHttpTransport, jsonFactory, credentials)
+                mPubsub = new Pubsub.Builder(mHttpTransport, jsonFactory, requestInitializer)
                         .setApplicationName(mAppname).build();
+                // Alerts may have been queued before the client existed.
+                drain();
             }
         });
     }
 
+    /** Publish ticks start once the upload scheduler reports a usable network. */
     public void start() {
-        mHandler.post(mPublishRunnable);
+        mUploadScheduler.start();
     }
 
     public void stop() {
-        mHandler.removeCallbacks(mPublishRunnable);
+        mUploadScheduler.stop();
+        mHandler.post(mOfflineRunnable);
     }
 
     public void close() {
-        mHandler.removeCallbacks(mPublishRunnable);
+        mUploadScheduler.stop();
+        mHandler.post(mOfflineRunnable);
+        mHandler.removeCallbacks(mDrainRunnable);
         mHandler.post(new Runnable() {
             @Override
             public void run() {
@@ -121,85 +194,587 @@ class PubsubPublisher {
                 }
             }
         });
-        mHandlerThread.quitSafely();
     }
 
-    public SensorEventListener getTemperatureListener() {
-        return mTemperatureListener;
+    public SampleListener getSampleListener() {
+        return mSampleListener;
     }
 
-    public SensorEventListener getPressureListener() {
-        return mPressureListener;
+    public void addPayloadSource(PayloadSource source) {
+        mPayloadSources.add(source);
     }
 
-    private Runnable mPublishRunnable = new Runnable() {
+    public void removePayloadSource(PayloadSource source) {
+        mPayloadSources.remove(source);
+    }
+
+    /**
+     * Beats on every publish tick, so a request stuck in {@code execute()} is noticed, and is
+     * inactive while offline, when there are no ticks.
+     */
+    public void setHeartbeat(Watchdog.Heartbeat heartbeat) {
+        if (heartbeat != null) {
+            heartbeat.setActive(mTicking);
+        }
+        mHeartbeat = heartbeat;
+    }
+
+    /** Caps the unsent bulk messages; the oldest are dropped beyond it. Alerts are not capped. */
+    public void setBulkLimit(long bytes) {
+        mBulkLimitBytes = bytes;
+    }
+
+    /** Unsent messages, trimmed oldest bulk first. */
+    public MemoryBudget.MemoryConsumer getQueueConsumer() {
+        return mQueueConsumer;
+    }
+
+    /** Reused buffers and messages, which are simply reallocated after a trim. */
+    public MemoryBudget.MemoryConsumer getCacheConsumer() {
+        return mCacheConsumer;
+    }
+
+    /** Unsent samples and unacknowledged messages, for {@link StateSnapshot}. */
+    public StateSnapshot.Section getSnapshotSection() {
+        return mSnapshotSection;
+    }
+
+    /**
+     * Publishes an alert on the express lane. It skips batching and is sent as soon as the
+     * publisher thread is free, ahead of any bulk telemetry still waiting to go out.
+     */
+    public void publishAlert(final String type, final String detail) {
+        final long timestamp = System.currentTimeMillis();
+        final long originNanos = PipelineTrace.now();
+        mHandler.postAtFrontOfQueue(new Runnable() {
+            @Override
+            public void run() {
+                mWriter.reset().beginObject()
+                        .name("deviceId").value(Build.DEVICE)
+                        .name("channel").value("pubsub")
+                        .name("timestamp").value(timestamp)
+                        .name("alert").beginObject()
+                        .name("type").value(type)
+                        .name("detail").value(detail)
+                        .endObject()
+                        .endObject();
+                enqueue(mExpressPending, "express", ENCODING_JSON, mWriter.toBase64(),
+                        originNanos);
+                drain();
+            }
+        });
+    }
+
+    // Posted by the upload scheduler, coalesced, once a network is usable: re-arms the publish
+    // tick and sends whatever queued up meanwhile.
+    private Runnable mOnlineRunnable = new Runnable() {
         @Override
         public void run() {
-            ConnectivityManager connectivityManager =
-                    (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
-            NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
-            if (activeNetwork == null || !activeNetwork.isConnectedOrConnecting()) {
-                Log.e(TAG, "no active network");
-                return;
+            if (!mTicking) {
+                mTicking = true;
+                Watchdog.Heartbeat heartbeat = mHeartbeat;
+                if (heartbeat != null) {
+                    heartbeat.setActive(true);
+                }
+                schedulePublish();
+            }
+            drain();
+        }
+    };
+
+    // Posted when the network goes away or the publisher stops. Nothing could be sent until the
+    // network is back, so the tick is cancelled instead of waking the worker every minute; the
+    // series keep their latest samples in the meantime.
+    private Runnable mOfflineRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mHandler.removeCallbacks(mPublishRunnable);
+            mTicking = false;
+            Watchdog.Heartbeat heartbeat = mHeartbeat;
+            if (heartbeat != null) {
+                heartbeat.setActive(false);
+            }
+        }
+    };
+
+    private Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Sends the whole express lane, then at most one bulk request. If bulk messages remain, the
+     * next round is posted behind whatever else is queued on the handler, so an alert never
+     * waits for more than one bulk request however large the backlog is. On a metered link the
+     * backlog is instead worked off one request per tick. The size of bulk requests follows
+     * their round-trip times and failures through {@link AimdController}.
+     */
+    private void drain() {
+        mHandler.removeCallbacks(mDrainRunnable);
+        if (mPubsub == null || !mUploadScheduler.isOnline()) {
+            // Picked up again by the upload scheduler once a network is available.
+            return;
+        }
+        try {
+            publishPending(mExpressPending, MAX_PENDING_MESSAGES);
+        } catch (IOException e) {
+            EventTrace.record(TraceEvents.PUBLISH_FAILED, mExpressPending.size(), 1);
+            Log.e(TAG, "Error publishing alerts", e);
+            mHandler.postDelayed(mDrainRunnable, EXPRESS_RETRY_MS);
+            return;
+        }
+        long requestNanos = PipelineTrace.now();
+        try {
+            if (publishPending(mBulkPending, mBulkWindow.getWindow()) > 0) {
+                mBulkWindow.onSuccess((PipelineTrace.now() - requestNanos) / 1000000L);
+            }
+        } catch (IOException e) {
+            if (isOverloaded(e)) {
+                mBulkWindow.onFailure();
+            }
+            // Pub/Sub may or may not have accepted the request; the pending messages are
+            // resent on the next tick with their original sequence numbers and deduplicated
+            // downstream.
+            EventTrace.record(TraceEvents.PUBLISH_FAILED, mBulkPending.size(), 0);
+            Log.e(TAG, "Error publishing message", e);
+            return;
+        }
+        if (!mBulkPending.isEmpty() && !mUploadScheduler.isMetered()) {
+            mHandler.post(mDrainRunnable);
+        }
+    }
+
+    /**
+     * Queues a Base64 encoded payload, reusing a message whose publish was acknowledged.
+     * {@code originNanos} is when its oldest content came about, see {@link PipelineTrace}.
+     */
+    private void enqueue(List<PendingMessage> lane, String laneName, String encoding,
+                         String data, long originNanos) {
+        long seq = mSequence.next();
+        EventTrace.record(TraceEvents.PUBLISH_QUEUED, seq, lane == mExpressPending ? 1 : 0);
+        PendingMessage pending = mFreeMessages.pollFirst();
+        if (pending == null) {
+            pending = new PendingMessage();
+        }
+        addPending(lane, pending.set(seq, laneName, encoding, data, originNanos,
+                PipelineTrace.now()));
+    }
+
+    private void addPending(List<PendingMessage> lane, PendingMessage pending) {
+        synchronized (mPendingLock) {
+            if (lane.size() == MAX_PENDING_MESSAGES) {
+                dropOldest(lane);
+            }
+            lane.add(pending);
+            if (lane == mBulkPending) {
+                trimBulk(mBulkLimitBytes);
+            }
+        }
+    }
+
+    // Drops the oldest bulk messages, but never the newest, until the lane fits in limitBytes.
+    private void trimBulk(long limitBytes) {
+        synchronized (mPendingLock) {
+            long bytes = getBytes(mBulkPending);
+            while (mBulkPending.size() > 1 && bytes > limitBytes) {
+                bytes -= mBulkPending.get(0).getBytes();
+                dropOldest(mBulkPending);
+            }
+        }
+    }
+
+    private void dropOldest(List<PendingMessage> lane) {
+        PendingMessage dropped = lane.remove(0);
+        EventTrace.record(TraceEvents.PUBLISH_DROPPED, dropped.seq,
+                lane == mExpressPending ? 1 : 0);
+        // Given up on, so it must not hold the watermark back.
+        mAckWindow.markSettled(dropped.seq);
+        recycle(dropped);
+    }
+
+    private static long getBytes(List<PendingMessage> lane) {
+        long bytes = 0;
+        for (int i = 0; i < lane.size(); i++) {
+            bytes += lane.get(i).getBytes();
+        }
+        return bytes;
+    }
+
+    private void recycle(PendingMessage pending) {
+        if (mFreeMessages.size() < MAX_FREE_MESSAGES) {
+            mFreeMessages.addLast(pending);
+        }
+    }
+
+    /**
+     * Whether a failed request means the link or the backend is overloaded, so that bulk
+     * requests should shrink: a timeout, a 429 or a 5xx. A 401 while the token is renewed, a
+     * token refresh error or any other client error says nothing about load.
+     */
+    private static boolean isOverloaded(IOException e) {
+        if (e instanceof TokenResponseException) {
+            return false;
+        }
+        if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status == STATUS_CODE_TOO_MANY_REQUESTS
+                    || status >= HttpStatusCodes.STATUS_CODE_SERVER_ERROR;
+        }
+        // Connect and read timeouts.
+        return e instanceof InterruptedIOException;
+    }
+
+    /**
+     * Publishes up to {@code maxMessages} of the oldest messages of a lane in one request and
+     * removes them from the lane once Pub/Sub acknowledges them. Returns how many were sent.
+     */
+    private int publishPending(List<PendingMessage> lane, int maxMessages)
+            throws IOException {
+        // Never resend anything that was already acknowledged.
+        synchronized (mPendingLock) {
+            while (!lane.isEmpty() && mAckWindow.isSettled(lane.get(0).seq)) {
+                recycle(lane.remove(0));
+            }
+        }
+        if (lane.isEmpty()) {
+            return 0;
+        }
+        // Lets the backend forget dedup state below the watermark.
+        if (mAckedBelow == null || mAckedBelowValue != mAckWindow.getLowWatermark()) {
+            mAckedBelowValue = mAckWindow.getLowWatermark();
+            mAckedBelow = Long.toString(mAckedBelowValue);
+        }
+        int count = Math.min(lane.size(), maxMessages);
+        mBatch.clear();
+        for (int i = 0; i < count; i++) {
+            PendingMessage pending = lane.get(i);
+            pending.message.getAttributes().put("ackedBelow", mAckedBelow);
+            mBatch.add(pending.message);
+        }
+        long requestNanos = PipelineTrace.now();
+        try {
+            mPubsub.projects().topics().publish(mTopic, mPublishRequest).execute();
+        } finally {
+            mBatch.clear();
+            PipelineTrace.record(PipelineTrace.TRANSMIT, requestNanos);
+        }
+        long ackNanos = PipelineTrace.now();
+        long first = lane.get(0).seq;
+        long last = first;
+        synchronized (mPendingLock) {
+            for (int i = 0; i < count; i++) {
+                PendingMessage pending = lane.remove(0);
+                PipelineTrace.record(PipelineTrace.QUEUE, pending.queuedNanos, requestNanos);
+                PipelineTrace.record(PipelineTrace.ACK, pending.originNanos, ackNanos);
+                last = pending.seq;
+                mAckWindow.markAcked(last, last);
+                recycle(pending);
             }
+        }
+        EventTrace.record(TraceEvents.PUBLISH_SENT, first, last);
+        return count;
+    }
+
+    /**
+     * Posts the next publish tick. The handler runs on uptime, so the wall-clock deadline is
+     * converted afresh each time.
+     */
+    private void schedulePublish() {
+        long now = System.currentTimeMillis();
+        long delay = mPublishSchedule.nextTickMs(now) - now;
+        mHandler.postAtTime(mPublishRunnable, SystemClock.uptimeMillis() + delay);
+    }
 
+    private Runnable mPublishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Watchdog.Heartbeat heartbeat = mHeartbeat;
+            if (heartbeat != null) {
+                heartbeat.beat();
+            }
+            // Only ticks while online, but the network may have gone a moment ago; drain()
+            // then leaves the batch queued until the upload scheduler reports it back.
             try {
-                JSONObject messagePayload = createMessagePayload(mLastTemperature, mLastPressure);
-                if (!messagePayload.has("data")) {
-                    Log.d(TAG, "no sensor measurement to publish");
-                    return;
-                }
-                Log.d(TAG, "publishing message: " + messagePayload);
-                PubsubMessage m = new PubsubMessage();
-                m.setData(Base64.encodeToString(messagePayload.toString().getBytes(),
-                        Base64.NO_WRAP));
-                PublishRequest request = new PublishRequest();
-                request.setMessages(Collections.singletonList(m));
-                mPubsub.projects().topics().publish(mTopic, request).execute();
-            } catch (JSONException | IOException e) {
-                Log.e(TAG, "Error publishing message", e);
+                enqueueBatch();
+                enqueueSourcePayloads();
+                drain();
+            } catch (JSONException e) {
+                Log.e(TAG, "Error encoding message", e);
             } finally {
-                mHandler.postDelayed(mPublishRunnable, PUBLISH_INTERVAL_MS);
+                schedulePublish();
             }
         }
 
-        private JSONObject createMessagePayload(float temperature, float pressure)
-                throws JSONException {
-            JSONObject sensorData = new JSONObject();
-            if (!Float.isNaN(temperature)) {
-                sensorData.put("temperature", String.valueOf(temperature));
+        private void enqueueBatch() {
+            long baseNanos = Math.min(mTemperatureSeries.getFirstTimestamp(),
+                    mPressureSeries.getFirstTimestamp());
+            if (baseNanos == Long.MAX_VALUE) {
+                EventTrace.record(TraceEvents.PUBLISH_NO_SAMPLES);
+                return;
             }
-            if (!Float.isNaN(pressure)) {
-                sensorData.put("pressure", String.valueOf(pressure));
+            long encodeNanos = PipelineTrace.now();
+            PipelineTrace.record(PipelineTrace.BUFFER, baseNanos, encodeNanos);
+            String encoding;
+            String payload;
+            if (ENCODING_GORILLA.equals(mPayloadEncoding)) {
+                encoding = ENCODING_GORILLA;
+                payload = createGorillaPayload();
+            } else {
+                encoding = ENCODING_JSON;
+                payload = createMessagePayload(baseNanos);
             }
-            JSONObject messagePayload = new JSONObject();
-            messagePayload.put("deviceId", Build.DEVICE);
-            messagePayload.put("channel", "pubsub");
-            messagePayload.put("timestamp", System.currentTimeMillis());
-            if (sensorData.has("temperature") || sensorData.has("pressure")) {
-                messagePayload.put("data", sensorData);
+            PipelineTrace.record(PipelineTrace.ENCODE, encodeNanos);
+            enqueue(mBulkPending, "bulk", encoding, payload, baseNanos);
+        }
+
+        // At most a few messages per source and tick, so that a busy gateway cannot push this
+        // device's own batches out of the bulk lane.
+        private void enqueueSourcePayloads() throws JSONException {
+            for (int s = 0; s < mPayloadSources.size(); s++) {
+                PayloadSource source = mPayloadSources.get(s);
+                for (int i = 0; i < MAX_SOURCE_MESSAGES_PER_TICK; i++) {
+                    JSONObject payload = source.createPayload(Build.DEVICE);
+                    if (payload == null) {
+                        break;
+                    }
+                    // Android's toString returns null for a payload holding NaN or infinity.
+                    String json = payload.toString();
+                    if (json == null) {
+                        Log.w(TAG, "Dropping a payload that is not valid JSON");
+                        continue;
+                    }
+                    enqueue(mBulkPending, "bulk", ENCODING_JSON, Base64.encodeToString(
+                            json.getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP),
+                            PipelineTrace.now());
+                }
             }
-            return messagePayload;
+        }
+
+        private String createMessagePayload(long baseNanos) {
+            // Map the monotonic sensor clock to wall-clock time once for the whole batch.
+            long wallClockOffsetMs = System.currentTimeMillis()
+                    - SystemClock.elapsedRealtimeNanos() / 1000000L;
+            mWriter.reset().beginObject()
+                    .name("deviceId").value(Build.DEVICE)
+                    .name("channel").value("pubsub")
+                    .name("timestamp").value(wallClockOffsetMs + baseNanos / 1000000L);
+            // Latest values, kept for consumers that only care about the current reading.
+            mWriter.name("data").beginObject();
+            mTemperatureSeries.writeLastValueTo(mWriter);
+            mPressureSeries.writeLastValueTo(mWriter);
+            mWriter.endObject().name("samples").beginObject();
+            mTemperatureSeries.drainTo(mWriter, baseNanos);
+            mPressureSeries.drainTo(mWriter, baseNanos);
+            mWriter.endObject().endObject();
+            return mWriter.toBase64();
+        }
+
+        private String createGorillaPayload() {
+            long wallClockOffsetMs = System.currentTimeMillis()
+                    - SystemClock.elapsedRealtimeNanos() / 1000000L;
+            mBitWriter.reset();
+            mBitWriter.writeBits('W', 8);
+            mBitWriter.writeBits('G', 8);
+            mBitWriter.writeBits(GORILLA_PAYLOAD_VERSION, 8);
+            mTemperatureSeries.drainTo(mBitWriter, mGorillaEncoder, wallClockOffsetMs);
+            mPressureSeries.drainTo(mBitWriter, mGorillaEncoder, wallClockOffsetMs);
+            // An empty name ends the list.
+            mBitWriter.writeBits(0, 8);
+            return mBase64.encode(mBitWriter.getBuffer(), mBitWriter.getByteLength());
         }
     };
 
-    private SensorEventListener mTemperatureListener = new SensorEventListener() {
+    private SampleListener mSampleListener = new SampleListener() {
         @Override
-        public void onSensorChanged(SensorEvent event) {
-            mLastTemperature = event.values[0];
+        public void onSample(int sensorType, float value, long timestampNanos) {
+            PipelineTrace.record(PipelineTrace.INGEST, timestampNanos);
+            if (sensorType == Sensor.TYPE_AMBIENT_TEMPERATURE) {
+                mTemperatureSeries.add(timestampNanos, value);
+            } else if (sensorType == Sensor.TYPE_PRESSURE) {
+                mPressureSeries.add(timestampNanos, value);
+            }
         }
+    };
 
+    private MemoryBudget.MemoryConsumer mQueueConsumer = new MemoryBudget.MemoryConsumer() {
         @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+        public long getHeapBytes() {
+            synchronized (mPendingLock) {
+                return getBytes(mExpressPending) + getBytes(mBulkPending);
+            }
+        }
+
+        @Override
+        public long getDiskBytes() {
+            return 0;
+        }
+
+        @Override
+        public void trimTo(final long heapBytes, long diskBytes) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mPendingLock) {
+                        trimBulk(heapBytes - getBytes(mExpressPending));
+                    }
+                }
+            });
+        }
     };
 
-    private SensorEventListener mPressureListener = new SensorEventListener() {
+    private MemoryBudget.MemoryConsumer mCacheConsumer = new MemoryBudget.MemoryConsumer() {
+        @Override
+        public long getHeapBytes() {
+            return mWriter.capacity() + mBase64.capacity();
+        }
+
         @Override
-        public void onSensorChanged(SensorEvent event) {
-            mLastPressure = event.values[0];
+        public long getDiskBytes() {
+            return 0;
         }
 
         @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+        public void trimTo(long heapBytes, long diskBytes) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mWriter.trim();
+                    mBase64.trim();
+                    mFreeMessages.clear();
+                }
+            });
+        }
+    };
+
+    private StateSnapshot.Section mSnapshotSection = new StateSnapshot.Section() {
+        @Override
+        public void writeTo(ByteBuffer out) {
+            mTemperatureSeries.writeTo(out);
+            mPressureSeries.writeTo(out);
+            synchronized (mPendingLock) {
+                writeLane(out, mExpressPending);
+                writeLane(out, mBulkPending);
+            }
+        }
+
+        @Override
+        public void readFrom(ByteBuffer in, long clockShiftNanos) {
+            long nowNanos = SystemClock.elapsedRealtimeNanos();
+            mTemperatureSeries.readFrom(in, clockShiftNanos, nowNanos);
+            mPressureSeries.readFrom(in, clockShiftNanos, nowNanos);
+            final List<PendingMessage> express =
+                    readLane(in, "express", clockShiftNanos, nowNanos);
+            final List<PendingMessage> bulk = readLane(in, "bulk", clockShiftNanos, nowNanos);
+            // Ahead of anything already queued so the restored messages keep their order.
+            mHandler.postAtFrontOfQueue(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mPendingLock) {
+                        mAckWindow = restoreAckWindow(express, bulk);
+                        mExpressPending.addAll(0, express);
+                        mBulkPending.addAll(0, bulk);
+                    }
+                    Log.d(TAG, "restored " + express.size() + " express and " + bulk.size()
+                            + " bulk messages");
+                    drain();
+                }
+            });
+        }
+
+        /**
+         * The restored lanes are the authority on what the previous publisher still owed:
+         * every number it issued that is not in them was acknowledged, or is lost with it, and
+         * the rest of its last reserved block was never issued. Runs before this publisher's
+         * client exists, so its own numbers can at most have been queued or dropped.
+         */
+        private AckWindow restoreAckWindow(List<PendingMessage> express,
+                                           List<PendingMessage> bulk) {
+            long start = mSequence.getStart();
+            long[] owed = new long[express.size() + bulk.size()];
+            long base = start;
+            for (int i = 0; i < owed.length; i++) {
+                owed[i] = i < express.size() ? express.get(i).seq
+                        : bulk.get(i - express.size()).seq;
+                base = Math.min(base, owed[i]);
+            }
+            Arrays.sort(owed);
+            AckWindow window = new AckWindow(base);
+            for (long seq = base; seq < start; seq++) {
+                if (Arrays.binarySearch(owed, seq) < 0) {
+                    window.markSettled(seq);
+                }
+            }
+            for (long seq = start; seq < mSequence.peek(); seq++) {
+                if (mAckWindow.isSettled(seq)) {
+                    window.markSettled(seq);
+                }
+            }
+            return window;
+        }
+
+        private void writeLane(ByteBuffer out, List<PendingMessage> lane) {
+            out.putInt(lane.size());
+            for (int i = 0; i < lane.size(); i++) {
+                PendingMessage pending = lane.get(i);
+                out.putLong(pending.seq);
+                out.putLong(pending.originNanos);
+                out.putLong(pending.queuedNanos);
+                StateSnapshot.putString(out, pending.encoding);
+                StateSnapshot.putString(out, pending.message.getData());
+            }
+        }
+
+        /** Restored messages are still owed, so their trace timestamps are clamped, not dropped. */
+        private List<PendingMessage> readLane(ByteBuffer in, String laneName,
+                                              long clockShiftNanos, long nowNanos) {
+            int count = in.getInt();
+            List<PendingMessage> lane = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long seq = in.getLong();
+                long originNanos = Math.min(in.getLong() + clockShiftNanos, nowNanos);
+                long queuedNanos = Math.min(in.getLong() + clockShiftNanos, nowNanos);
+                String encoding = StateSnapshot.getString(in);
+                lane.add(new PendingMessage().set(seq, laneName, encoding,
+                        StateSnapshot.getString(in), originNanos, queuedNanos));
+            }
+            return lane;
+        }
     };
-}
\ No newline at end of file
+
+    /** A queued message, recycled once Pub/Sub has acknowledged it. */
+    private static class PendingMessage {
+        long seq;
+        String encoding;
+        // Spans for PipelineTrace, on the elapsed realtime clock.
+        long originNanos;
+        long queuedNanos;
+        final PubsubMessage message = new PubsubMessage();
+        private final Map<String, String> mAttributes = new HashMap<>();
+
+        PendingMessage() {
+            mAttributes.put("deviceId", Build.DEVICE);
+            message.setAttributes(mAttributes);
+        }
+
+        PendingMessage set(long seq, String laneName, String encoding, String data,
+                           long originNanos, long queuedNanos) {
+            this.seq = seq;
+            this.encoding = encoding;
+            this.originNanos = originNanos;
+            this.queuedNanos = queuedNanos;
+            message.setData(data);
+            // Replacing the values of existing keys does not allocate map entries.
+            mAttributes.put("seq", Long.toString(seq));
+            mAttributes.put("lane", laneName);
+            mAttributes.put("encoding", encoding);
+            return this;
+        }
+
+        // Roughly what the message holds on the heap: its Base64 data as UTF-16.
+        long getBytes() {
+            return 2L * message.getData().length();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Receives filtered sensor values. {@code sensorType} is one of the {@code Sensor.TYPE_*}
+ * constants and {@code timestampNanos} is the monotonic {@code SensorEvent.timestamp} of the
+ * reading, on the same time base as {@code SystemClock.elapsedRealtimeNanos()}.
+ */
+interface SampleListener {
+    void onSample(int sensorType, float value, long timestampNanos);
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer, single-consumer ring of filtered samples, the hand-off from the
+ * sensor threads to {@link PublisherService}. Offering and draining a sample are a few array
+ * writes and an ordered store; nothing is allocated and neither side ever waits for the other.
+ * A full ring drops the newest samples and counts them, as the producer may not touch the
+ * consumer's index.
+ *
+ * <p>One producer thread at a time: the BMP280 sampler or the sensor replay, never both.
+ * Draining is synchronized so that a consumer thread replaced by the {@link Watchdog} cannot
+ * overlap with its successor; the producer never takes the lock.
+ */
+class SampleRing implements SampleListener {
+    private final int mMask;
+    private final int[] mTypes;
+    private final float[] mValues;
+    private final long[] mTimestamps;
+    // Next slot to write, owned by the producer, and next slot to read, owned by the consumer.
+    // Ordered stores publish the slots to the other side.
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /** {@code capacity} is rounded up to a power of two. */
+    SampleRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mMask = size - 1;
+        mTypes = new int[size];
+        mValues = new float[size];
+        mTimestamps = new long[size];
+    }
+
+    /** Producer side; drops the sample if the ring is full. */
+    @Override
+    public void onSample(int sensorType, float value, long timestampNanos) {
+        long head = mHead.get();
+        if (head - mTail.get() > mMask) {
+            mDropped.incrementAndGet();
+            return;
+        }
+        int i = (int) head & mMask;
+        mTypes[i] = sensorType;
+        mValues[i] = value;
+        mTimestamps[i] = timestampNanos;
+        mHead.lazySet(head + 1);
+    }
+
+    /** Consumer side; hands every queued sample to {@code listener} and returns how many. */
+    synchronized int drainTo(SampleListener listener) {
+        long tail = mTail.get();
+        long head = mHead.get();
+        for (long n = tail; n < head; n++) {
+            int i = (int) n & mMask;
+            listener.onSample(mTypes[i], mValues[i], mTimestamps[i]);
+        }
+        mTail.lazySet(head);
+        return (int) (head - tail);
+    }
+
+    /** Samples dropped on a full ring since the start. */
+    long getDropped() {
+        return mDropped.get();
+    }
+}
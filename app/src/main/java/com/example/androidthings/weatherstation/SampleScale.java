@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Fixed-point representation of one sensor channel. Samples are held as {@code int} counts of
+ * {@code step} units above {@code offset}, where a unit is 10<sup>-decimals</sup> of the sensor
+ * unit, so that they map to and from the decimal values in the payloads exactly and all
+ * arithmetic on them is integer. Floats only appear where readings enter and leave.
+ */
+class SampleScale {
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000};
+
+    // Centi-degrees Celsius: the resolution of the BMP280.
+    static final SampleScale TEMPERATURE = new SampleScale(2, 1, 0);
+    // Pascals, counted from 1000 hPa: the two decimals of hectopascals in the payloads. The
+    // BMP280 resolves down to 0.16 Pa, and pressure tendencies are built from changes of a few
+    // pascals, so nothing coarser is stored.
+    static final SampleScale PRESSURE = new SampleScale(2, 1, 100000);
+
+    private final int mDecimals;
+    private final int mStep;
+    private final int mOffset;
+
+    SampleScale(int decimals, int step, int offset) {
+        if (decimals < 0 || decimals >= POWERS_OF_TEN.length || step <= 0) {
+            throw new IllegalArgumentException("Invalid scale: " + decimals + "/" + step);
+        }
+        mDecimals = decimals;
+        mStep = step;
+        mOffset = offset;
+    }
+
+    int getDecimals() {
+        return mDecimals;
+    }
+
+    int getStep() {
+        return mStep;
+    }
+
+    int getOffset() {
+        return mOffset;
+    }
+
+    /** Rounds {@code value} to the nearest step, clamped to the range of an int. */
+    int quantize(float value) {
+        long units = Math.round((double) value * POWERS_OF_TEN[mDecimals]);
+        long steps = Math.round((double) (units - mOffset) / mStep);
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, steps));
+    }
+
+    /** Returns {@code steps} in units of 10<sup>-decimals</sup>, exactly. */
+    long toUnits(int steps) {
+        return (long) steps * mStep + mOffset;
+    }
+
+    float toFloat(int steps) {
+        return (float) ((double) toUnits(steps) / POWERS_OF_TEN[mDecimals]);
+    }
+}
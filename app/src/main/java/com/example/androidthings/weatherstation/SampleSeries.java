@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded column store of timestamped samples for one sensor, collected between two publishes.
+ * Timestamps are monotonic nanoseconds on the {@code SensorEvent.timestamp} time base; they are
+ * only mapped to wall-clock time when the batch is encoded. Values are quantized to the series'
+ * {@link SampleScale} as they are added, and only turned back into decimals in the payload.
+ */
+class SampleSeries {
+    private final String mName;
+    private final SampleScale mScale;
+    private final long mMinIntervalNanos;
+    private final long[] mTimestamps;
+    private final int[] mValues;
+    private int mStart;
+    private int mCount;
+
+    SampleSeries(String name, SampleScale scale, int capacity, long minIntervalNanos) {
+        mName = name;
+        mScale = scale;
+        mMinIntervalNanos = minIntervalNanos;
+        mTimestamps = new long[capacity];
+        mValues = new int[capacity];
+    }
+
+    /**
+     * Records a sample unless it arrives sooner than the minimum interval after the previous
+     * one. When the series is full the oldest sample is dropped.
+     */
+    synchronized boolean add(long timestampNanos, float value) {
+        if (mCount > 0 && timestampNanos - mTimestamps[index(mCount - 1)]
+                < mMinIntervalNanos) {
+            return false;
+        }
+        if (mCount == mTimestamps.length) {
+            mStart = (mStart + 1) % mTimestamps.length;
+            mCount--;
+        }
+        int i = index(mCount);
+        mTimestamps[i] = timestampNanos;
+        mValues[i] = mScale.quantize(value);
+        mCount++;
+        return true;
+    }
+
+    synchronized boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /** Returns the oldest buffered timestamp, or {@code Long.MAX_VALUE} if empty. */
+    synchronized long getFirstTimestamp() {
+        return mCount == 0 ? Long.MAX_VALUE : mTimestamps[mStart];
+    }
+
+    /** Writes the latest sample as {@code "<name>": "<value>"}, if there is one. */
+    synchronized void writeLastValueTo(PayloadWriter out) {
+        if (mCount > 0) {
+            out.name(mName).quotedFixedValue(mScale.toUnits(mValues[index(mCount - 1)]),
+                    mScale.getDecimals());
+        }
+    }
+
+    /**
+     * Moves the buffered samples into {@code out} as {@code "<name>": {"dt": [...], "v": [...]}},
+     * where each {@code dt} entry is the millisecond delta to the previous sample and the first
+     * one is relative to {@code baseNanos}. Allocates nothing.
+     */
+    synchronized void drainTo(PayloadWriter out, long baseNanos) {
+        if (mCount == 0) {
+            return;
+        }
+        out.name(mName).beginObject().name("dt").beginArray();
+        long previousMillis = baseNanos / 1000000L;
+        for (int n = 0; n < mCount; n++) {
+            long millis = mTimestamps[index(n)] / 1000000L;
+            out.value(millis - previousMillis);
+            previousMillis = millis;
+        }
+        out.endArray().name("v").beginArray();
+        for (int n = 0; n < mCount; n++) {
+            out.fixedValue(mScale.toUnits(mValues[index(n)]), mScale.getDecimals());
+        }
+        out.endArray().endObject();
+        mStart = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Moves the buffered samples into {@code out} as its name (length byte and ASCII) followed by
+     * a {@link GorillaEncoder} block, with timestamps mapped to wall-clock milliseconds.
+     * Allocates nothing.
+     */
+    synchronized void drainTo(BitWriter out, GorillaEncoder encoder, long wallClockOffsetMs) {
+        if (mCount == 0) {
+            return;
+        }
+        out.writeBits(mName.length(), 8);
+        for (int i = 0; i < mName.length(); i++) {
+            out.writeBits(mName.charAt(i), 8);
+        }
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int n = 0; n < mCount; n++) {
+            min = Math.min(min, mValues[index(n)]);
+            max = Math.max(max, mValues[index(n)]);
+        }
+        encoder.begin(out, mCount, mScale, min, max);
+        for (int n = 0; n < mCount; n++) {
+            int i = index(n);
+            encoder.add(wallClockOffsetMs + mTimestamps[i] / 1000000L, mValues[i]);
+        }
+        mStart = 0;
+        mCount = 0;
+    }
+
+    /** Writes the buffered samples, oldest first, for {@link StateSnapshot}. */
+    synchronized void writeTo(ByteBuffer out) {
+        out.putInt(mCount);
+        for (int n = 0; n < mCount; n++) {
+            int i = index(n);
+            out.putLong(mTimestamps[i]);
+            out.putInt(mValues[i]);
+        }
+    }
+
+    /**
+     * Prepends samples written by {@link #writeTo} to the ones already buffered, shifting their
+     * timestamps by {@code clockShiftNanos}. Samples that land after {@code nowNanos} are
+     * dropped, and so are the oldest if they do not all fit.
+     */
+    synchronized void readFrom(ByteBuffer in, long clockShiftNanos, long nowNanos) {
+        int count = in.getInt();
+        long[] timestamps = new long[count];
+        int[] values = new int[count];
+        int restored = 0;
+        for (int n = 0; n < count; n++) {
+            long timestamp = in.getLong() + clockShiftNanos;
+            int value = in.getInt();
+            if (timestamp <= nowNanos) {
+                timestamps[restored] = timestamp;
+                values[restored] = value;
+                restored++;
+            }
+        }
+        int keep = Math.min(restored, mTimestamps.length - mCount);
+        for (int n = restored - 1; n >= restored - keep; n--) {
+            mStart = (mStart - 1 + mTimestamps.length) % mTimestamps.length;
+            mTimestamps[mStart] = timestamps[n];
+            mValues[mStart] = values[n];
+            mCount++;
+        }
+    }
+
+    private int index(int n) {
+        return (mStart + n) % mTimestamps.length;
+    }
+}
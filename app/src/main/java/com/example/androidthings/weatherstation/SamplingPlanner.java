@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Works out how often the sensor actually needs to be read. Each consumer declares the interval
+ * it needs through a {@link Request}; the plan is the shortest active one, capped at
+ * {@link #MAX_INTERVAL_MS}, and the sampler is told whenever it changes so that it can let the
+ * chip sleep when nobody needs high-rate data.
+ */
+class SamplingPlanner {
+    private static final String TAG = SamplingPlanner.class.getSimpleName();
+
+    /** Interval when no consumer asks for more, so that faults are still noticed. */
+    static final long MAX_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+    /** Interval of a request that is currently not needed. */
+    static final long NOT_NEEDED = Long.MAX_VALUE;
+
+    interface Listener {
+        void onIntervalChanged(long intervalMs);
+    }
+
+    /** One consumer's needs. */
+    class Request {
+        private final String mName;
+        private long mIntervalMs;
+
+        private Request(String name, long intervalMs) {
+            mName = name;
+            mIntervalMs = intervalMs;
+        }
+
+        void setInterval(long intervalMs) {
+            synchronized (SamplingPlanner.this) {
+                mIntervalMs = intervalMs;
+                update();
+            }
+        }
+
+        void release() {
+            synchronized (SamplingPlanner.this) {
+                mRequests.remove(this);
+                update();
+            }
+        }
+    }
+
+    private final List<Request> mRequests = new ArrayList<>();
+    private long mIntervalMs = MAX_INTERVAL_MS;
+    private Listener mListener;
+
+    synchronized Request request(String name, long intervalMs) {
+        Request request = new Request(name, intervalMs);
+        mRequests.add(request);
+        update();
+        return request;
+    }
+
+    synchronized long getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    /** Calls {@code listener} with the current plan right away, then on every change. */
+    synchronized void setListener(Listener listener) {
+        mListener = listener;
+        if (listener != null) {
+            listener.onIntervalChanged(mIntervalMs);
+        }
+    }
+
+    private void update() {
+        long interval = MAX_INTERVAL_MS;
+        String driver = null;
+        for (int i = 0; i < mRequests.size(); i++) {
+            Request request = mRequests.get(i);
+            if (request.mIntervalMs < interval) {
+                interval = request.mIntervalMs;
+                driver = request.mName;
+            }
+        }
+        if (interval == mIntervalMs) {
+            return;
+        }
+        Log.d(TAG, "Sampling every " + interval + " ms"
+                + (driver != null ? " for " + driver : ""));
+        mIntervalMs = interval;
+        if (mListener != null) {
+            mListener.onIntervalChanged(interval);
+        }
+    }
+}
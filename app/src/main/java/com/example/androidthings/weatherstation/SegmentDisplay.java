@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import com.google.android.things.pio.I2cDevice;
+import com.google.android.things.pio.PeripheralManagerService;
+
+import java.io.IOException;
+
+/**
+ * Driver for the HT16K33 backed 4 digit 14-segment display. Keeps a shadow copy of the display
+ * RAM and, on every update, writes only the span of digit registers that actually changed, in a
+ * single I2C transaction. The display shares its bus with the BMP280, so every byte not written
+ * here is bus time left for the sensor.
+ *
+ * <p>All bus access goes through the {@link I2cBusArbiter} at display priority. Updates only
+ * change the pending digits and queue one reusable flush, so updates that arrive while the bus is
+ * busy are merged into a single write.
+ */
+class SegmentDisplay implements AutoCloseable {
+    static final int I2C_ADDRESS = 0x70;
+    static final int DIGITS = 4;
+
+    private static final int CMD_SYSTEM_SETUP_OSCILLATOR_ON = 0x21;
+    private static final int CMD_DISPLAY_OFF = 0x80;
+    private static final int CMD_DISPLAY_ON = 0x81;
+    private static final int CMD_BRIGHTNESS = 0xE0;
+    private static final int MAX_BRIGHTNESS = 15;
+    private static final short SEGMENT_DECIMAL_POINT = 0x4000;
+
+    // 14-segment patterns indexed by ASCII code; lower case letters map to upper case.
+    private static final short[] FONT = new short[128];
+
+    static {
+        short[] printable = {
+                0x0000, 0x0006, 0x0220, 0x12CE, 0x12ED, 0x0C24, 0x235D, 0x0400, // sp ! " # $ % & '
+                0x2400, 0x0900, 0x3FC0, 0x12C0, 0x0800, 0x00C0, 0x4000, 0x0C00, // ( ) * + , - . /
+                0x0C3F, 0x0006, 0x00DB, 0x008F, 0x00E6, 0x2069, 0x00FD, 0x0007, // 0 - 7
+                0x00FF, 0x00EF, 0x1200, 0x0A00, 0x2400, 0x00C8, 0x0900, 0x1083, // 8 9 : ; < = > ?
+                0x02BB, 0x00F7, 0x128F, 0x0039, 0x120F, 0x00F9, 0x0071, 0x00BD, // @ A - G
+                0x00F6, 0x1209, 0x001E, 0x2470, 0x0038, 0x0536, 0x2136, 0x003F, // H - O
+                0x00F3, 0x203F, 0x20F3, 0x00ED, 0x1201, 0x003E, 0x0C30, 0x2836, // P - W
+                0x2D00, 0x1500, 0x0C09, 0x0039, 0x2100, 0x000F, 0x0C03, 0x0008, // X Y Z [ \ ] ^ _
+        };
+        System.arraycopy(printable, 0, FONT, ' ', printable.length);
+        for (char c = 'a'; c <= 'z'; c++) {
+            FONT[c] = FONT[c - 'a' + 'A'];
+        }
+    }
+
+    private final I2cDevice mDevice;
+    private final I2cBusArbiter mArbiter;
+    private final byte[] mCommand = new byte[1];
+    private final byte[] mBuffer = new byte[DIGITS * 2];
+    private final short[] mShadow = new short[DIGITS];
+    private final short[] mPending = new short[DIGITS];
+    private boolean mShadowValid;
+
+    private long mBytesWritten;
+    private long mBytesSaved;
+
+    SegmentDisplay(String bus, I2cBusArbiter arbiter) throws IOException {
+        mDevice = new PeripheralManagerService().openI2cDevice(bus, I2C_ADDRESS);
+        mArbiter = arbiter;
+        command(CMD_SYSTEM_SETUP_OSCILLATOR_ON);
+    }
+
+    public void setEnabled(boolean enabled) {
+        command(enabled ? CMD_DISPLAY_ON : CMD_DISPLAY_OFF);
+    }
+
+    public void setBrightness(int brightness) {
+        command(CMD_BRIGHTNESS | Math.max(0, Math.min(brightness, MAX_BRIGHTNESS)));
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < DIGITS; i++) {
+            mPending[i] = 0;
+        }
+        mArbiter.submit(mFlushTransaction);
+    }
+
+    /**
+     * Shows the first four characters of {@code text}. A '.' lights the decimal point of the
+     * previous digit instead of taking a digit of its own.
+     */
+    public synchronized void display(CharSequence text) {
+        int digit = 0;
+        for (int i = 0; i < text.length() && digit <= DIGITS; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && digit > 0 && (mPending[digit - 1] & SEGMENT_DECIMAL_POINT) == 0) {
+                mPending[digit - 1] |= SEGMENT_DECIMAL_POINT;
+                continue;
+            }
+            if (digit == DIGITS) {
+                break;
+            }
+            mPending[digit++] = c < FONT.length ? FONT[c] : 0;
+        }
+        while (digit < DIGITS) {
+            mPending[digit++] = 0;
+        }
+        mArbiter.submit(mFlushTransaction);
+    }
+
+    /** Bytes sent to the display RAM so far, including the register address byte. */
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** Bytes a full rewrite of all digits would have sent on top of {@link #getBytesWritten()}. */
+    public synchronized long getBytesSaved() {
+        return mBytesSaved;
+    }
+
+    /** Closes the device once every update queued so far has been written. */
+    @Override
+    public void close() {
+        mArbiter.submit(new I2cBusArbiter.Transaction(I2cBusArbiter.PRIORITY_DISPLAY) {
+            @Override
+            void execute() throws IOException {
+                mDevice.close();
+            }
+        });
+    }
+
+    private I2cBusArbiter.Transaction mFlushTransaction =
+            new I2cBusArbiter.Transaction(I2cBusArbiter.PRIORITY_DISPLAY) {
+        @Override
+        void execute() throws IOException {
+            flush();
+        }
+    };
+
+    private synchronized void flush() throws IOException {
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < DIGITS; i++) {
+            if (!mShadowValid || mPending[i] != mShadow[i]) {
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+        }
+        int fullWrite = 1 + DIGITS * 2;
+        if (first < 0) {
+            mBytesSaved += fullWrite;
+            return;
+        }
+        int length = 0;
+        for (int i = first; i <= last; i++) {
+            mBuffer[length++] = (byte) mPending[i];
+            mBuffer[length++] = (byte) (mPending[i] >> 8);
+        }
+        mDevice.writeRegBuffer(first * 2, mBuffer, length);
+        System.arraycopy(mPending, first, mShadow, first, last - first + 1);
+        mShadowValid = true;
+        mBytesWritten += 1 + length;
+        mBytesSaved += fullWrite - (1 + length);
+    }
+
+    // Commands are rare (setup and shutdown) so they simply get a transaction each.
+    private void command(final int command) {
+        mArbiter.submit(new I2cBusArbiter.Transaction(I2cBusArbiter.PRIORITY_DISPLAY) {
+            @Override
+            void execute() throws IOException {
+                mCommand[0] = (byte) command;
+                mDevice.write(mCommand, 1);
+            }
+        });
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Notified when the {@link AnomalyDetector} of a sensor changes its verdict, including the change
+ * back to {@link AnomalyDetector.Fault#NONE} once readings are plausible again. Called on the
+ * thread that read the sensor, such as the {@link I2cBusArbiter} worker, so implementations must
+ * return quickly and hand anything slow to another thread.
+ */
+interface SensorFaultListener {
+    void onSensorFault(int sensorType, AnomalyDetector.Fault fault, float value);
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Records raw sensor readings, before anomaly screening and filtering, into a compact binary
+ * file that {@link SensorReplayer} can feed back through the pipeline.
+ *
+ * <p>The file starts with a {@link #MAGIC}/{@link #VERSION} header and the absolute timestamp of
+ * the first reading. Each reading is then the sensor type as one byte, the delta to the previous
+ * reading in microseconds as an unsigned varint, and the value as a float: 6 to 8 bytes per
+ * reading. A {@code NaN} value marks the sensor as unavailable.
+ *
+ * <p>Readings arrive on the I2C arbiter thread, which must not block on storage, so they are
+ * queued in a {@link SampleRing} and written on the handler's thread. A ring that fills up
+ * because storage stalls drops readings rather than holding up the sensors.
+ */
+class SensorRecorder implements SampleListener, MemoryBudget.MemoryConsumer {
+    private static final String TAG = SensorRecorder.class.getSimpleName();
+
+    static final int MAGIC = 0x57535243; // "WSRC"
+    static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int PENDING_CAPACITY = 1024;
+    // Type, value and timestamp of every queued reading.
+    private static final int PENDING_BYTES = PENDING_CAPACITY * (4 + 4 + 8);
+
+    private final DataOutputStream mOut;
+    private final Handler mHandler;
+    private final SampleRing mPending = new SampleRing(PENDING_CAPACITY);
+    private final AtomicBoolean mFlushPosted = new AtomicBoolean();
+    private long mLastTimestampNanos = -1;
+    private long mCount;
+    private long mMaxBytes = Long.MAX_VALUE;
+    private volatile boolean mStopped;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final SampleListener mFileWriter = new SampleListener() {
+        @Override
+        public void onSample(int sensorType, float value, long timestampNanos) {
+            write(sensorType, value, timestampNanos);
+        }
+    };
+
+    /** Writes to {@code file} on {@code handler}'s thread. */
+    SensorRecorder(File file, Handler handler) throws IOException {
+        mHandler = handler;
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                BUFFER_SIZE));
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+    }
+
+    /** Stops recording once the file reaches {@code bytes}. */
+    synchronized void setMaxBytes(long bytes) {
+        mMaxBytes = bytes;
+    }
+
+    /** Only queues the reading, the write happens on the handler's thread. */
+    @Override
+    public void onSample(int sensorType, float value, long timestampNanos) {
+        if (mStopped) {
+            return;
+        }
+        mPending.onSample(sensorType, value, timestampNanos);
+        if (mFlushPosted.compareAndSet(false, true)) {
+            mHandler.post(mFlushRunnable);
+        }
+    }
+
+    /** Writes every queued reading. */
+    synchronized void flush() {
+        // Cleared first so that a reading queued while draining posts another flush.
+        mFlushPosted.set(false);
+        if (!mStopped) {
+            mPending.drainTo(mFileWriter);
+        }
+    }
+
+    private void write(int sensorType, float value, long timestampNanos) {
+        if (mStopped) {
+            return;
+        }
+        if (mOut.size() >= mMaxBytes) {
+            Log.w(TAG, "Recording reached " + mOut.size() + " bytes, stopping");
+            stop();
+            return;
+        }
+        try {
+            if (mLastTimestampNanos < 0) {
+                mOut.writeLong(timestampNanos);
+                mLastTimestampNanos = timestampNanos;
+            }
+            // Deltas are relative to the previous reading as it will be replayed, so rounding
+            // to microseconds does not accumulate over long recordings.
+            long deltaMicros = Math.max(0, timestampNanos - mLastTimestampNanos) / 1000L;
+            mOut.writeByte(sensorType);
+            writeVarint(deltaMicros);
+            mOut.writeFloat(value);
+            mLastTimestampNanos += deltaMicros * 1000L;
+            mCount++;
+        } catch (IOException e) {
+            Log.e(TAG, "Error recording sample", e);
+        }
+    }
+
+    @Override
+    public synchronized long getHeapBytes() {
+        return mStopped ? 0 : BUFFER_SIZE + PENDING_BYTES;
+    }
+
+    @Override
+    public synchronized long getDiskBytes() {
+        return mOut.size();
+    }
+
+    /**
+     * A recording cannot lose its oldest readings without being rewritten, so going over the
+     * disk limit ends it instead.
+     */
+    @Override
+    public synchronized void trimTo(long heapBytes, long diskBytes) {
+        if (!mStopped && (mOut.size() > diskBytes || heapBytes < BUFFER_SIZE + PENDING_BYTES)) {
+            Log.w(TAG, "Stopping recording to free memory");
+            stop();
+        }
+    }
+
+    /** Writes the readings still queued and closes the file. */
+    synchronized void close() {
+        if (mStopped) {
+            return;
+        }
+        mHandler.removeCallbacks(mFlushRunnable);
+        mPending.drainTo(mFileWriter);
+        stop();
+    }
+
+    /** Closes the file without writing the readings still queued. */
+    private synchronized void stop() {
+        if (mStopped) {
+            return;
+        }
+        mStopped = true;
+        try {
+            mOut.close();
+            Log.d(TAG, "Recorded " + mCount + " readings, dropped " + mPending.getDropped());
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing recording", e);
+        }
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            mOut.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        mOut.writeByte((int) value);
+    }
+}
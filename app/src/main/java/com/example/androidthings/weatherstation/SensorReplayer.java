@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Feeds a recording made by {@link SensorRecorder} back into the pipeline, in place of the
+ * sensor, either paced like the original or as fast as possible. Only uses plain Java so that
+ * recorded storms can also be replayed against the processing path on a development host.
+ */
+class SensorReplayer {
+    /** Receives the replayed readings of one sensor, e.g. its {@link FilteredSensorListener}. */
+    interface Target {
+        void onRawSample(float value, long timestampNanos);
+
+        void onSensorUnavailable(long timestampNanos);
+    }
+
+    /** Replay speed that skips pacing altogether. */
+    static final float AS_FAST_AS_POSSIBLE = 0;
+
+    private static final int MAX_SENSOR_TYPE = 255;
+
+    private final DataInputStream mIn;
+    private final Target[] mTargets = new Target[MAX_SENSOR_TYPE + 1];
+    private float mSpeed = 1;
+    private long mTimeBaseNanos;
+    private volatile boolean mStopped;
+
+    SensorReplayer(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in));
+        if (mIn.readInt() != SensorRecorder.MAGIC) {
+            throw new IOException("Not a sensor recording");
+        }
+        int version = mIn.readInt();
+        if (version != SensorRecorder.VERSION) {
+            throw new IOException("Unsupported recording version " + version);
+        }
+        mTimeBaseNanos = mIn.readLong();
+    }
+
+    /** Routes the readings of one sensor type; readings of other types are skipped. */
+    SensorReplayer addTarget(int sensorType, Target target) {
+        mTargets[sensorType] = target;
+        return this;
+    }
+
+    /** 1 replays in real time, 10 ten times faster, {@link #AS_FAST_AS_POSSIBLE} unpaced. */
+    SensorReplayer setSpeed(float speed) {
+        mSpeed = speed;
+        return this;
+    }
+
+    /**
+     * Timestamp given to the first reading; the others keep their recorded spacing. Defaults
+     * to the recorded timestamp.
+     */
+    SensorReplayer setTimeBase(long timeBaseNanos) {
+        mTimeBaseNanos = timeBaseNanos;
+        return this;
+    }
+
+    /** Makes {@link #replay()} return before the next reading. */
+    void stop() {
+        mStopped = true;
+    }
+
+    /**
+     * Replays the recording on the calling thread until it ends or {@link #stop()} is called,
+     * then closes it. Returns the number of readings delivered.
+     */
+    long replay() throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        long offsetNanos = 0;
+        long count = 0;
+        try {
+            while (!mStopped) {
+                int sensorType;
+                try {
+                    sensorType = mIn.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                offsetNanos += readVarint() * 1000L;
+                float value = mIn.readFloat();
+                if (mSpeed > 0) {
+                    long delayNanos = (long) (offsetNanos / mSpeed)
+                            - (System.nanoTime() - startNanos);
+                    if (delayNanos > 0) {
+                        Thread.sleep(delayNanos / 1000000L, (int) (delayNanos % 1000000L));
+                    }
+                }
+                Target target = mTargets[sensorType];
+                if (target == null) {
+                    continue;
+                }
+                long timestampNanos = mTimeBaseNanos + offsetNanos;
+                if (Float.isNaN(value)) {
+                    target.onSensorUnavailable(timestampNanos);
+                } else {
+                    target.onRawSample(value, timestampNanos);
+                }
+                count++;
+            }
+        } finally {
+            mIn.close();
+        }
+        return count;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = mIn.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Per-device monotonic sequence numbers that survive restarts. Numbers are reserved in blocks so
+ * that preferences are only written once every {@link #BLOCK_SIZE} messages; a crash skips the
+ * rest of the current block but never reuses a number.
+ */
+class SequenceGenerator {
+    private static final String PREFS_NAME = "pubsub_sequence";
+    private static final String KEY_RESERVED = "reserved";
+    private static final long BLOCK_SIZE = 100;
+
+    private final SharedPreferences mPrefs;
+    private final long mStart;
+    private long mNext;
+    private long mReserved;
+
+    SequenceGenerator(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mNext = mPrefs.getLong(KEY_RESERVED, 0);
+        mStart = mNext;
+        mReserved = mNext;
+    }
+
+    synchronized long next() {
+        if (mNext == mReserved) {
+            mReserved = mNext + BLOCK_SIZE;
+            mPrefs.edit().putLong(KEY_RESERVED, mReserved).commit();
+        }
+        return mNext++;
+    }
+
+    /**
+     * Returns the first number this instance hands out. Earlier instances issued numbers below
+     * it, and skipped the rest of their last block.
+     */
+    long getStart() {
+        return mStart;
+    }
+
+    /** Returns the sequence number the next call to {@link #next()} will hand out. */
+    synchronized long peek() {
+        return mNext;
+    }
+}
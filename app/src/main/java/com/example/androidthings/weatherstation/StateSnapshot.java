@@ -0,0 +1,260 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Periodically checkpoints in-memory state to a memory-mapped file so that a restarted process
+ * picks up where the previous one left off instead of starting cold.
+ *
+ * <p>The file holds two slots that are written alternately. Each slot carries a generation
+ * number and a CRC32 of its payload, so a write torn by a crash or power loss only ever damages
+ * the slot being written and the previous snapshot is used instead. The payload is a list of
+ * sections, one per registered component, so a component that changes its format or goes away
+ * does not invalidate the others.
+ */
+class StateSnapshot {
+    private static final String TAG = StateSnapshot.class.getSimpleName();
+
+    /** A component whose state is part of the snapshot. */
+    interface Section {
+        /** Called on the snapshot thread; must be safe against concurrent updates. */
+        void writeTo(ByteBuffer out);
+
+        /**
+         * Restores state written by a previous process. Monotonic timestamps must be shifted by
+         * {@code clockShiftNanos} to land on the current boot's time base. Wall-clock jitter
+         * can still shift one slightly past the current time, so sections clamp or drop those.
+         */
+        void readFrom(ByteBuffer in, long clockShiftNanos);
+    }
+
+    private static final int MAGIC = 0x57535331; // "WSS1"
+    // Bumped whenever a section changes its layout; older snapshots are then ignored.
+    private static final int VERSION = 7;
+    private static final int SLOT_SIZE = 128 * 1024;
+    // magic, version, generation, wall-clock offset, wall-clock time, payload length, crc.
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 4 + 4;
+    // Upper bound of the state of all sections together.
+    static final int MAX_SECTION_SIZE = SLOT_SIZE - HEADER_SIZE;
+    // The scratch buffer and the two slots, for MemoryBudget.
+    static final int HEAP_BYTES = MAX_SECTION_SIZE;
+    static final int DISK_BYTES = 2 * SLOT_SIZE;
+    private static final long SNAPSHOT_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+    // A snapshot older than this is not a restart but a cold start with stale data, or the wall
+    // clock jumped; either way the clock shift derived from it cannot be trusted.
+    private static final long MAX_SNAPSHOT_AGE_MS = TimeUnit.DAYS.toMillis(1);
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mMap;
+    private final ByteBuffer mScratch = ByteBuffer.allocate(MAX_SECTION_SIZE);
+    private final CRC32 mCrc = new CRC32();
+    private final SparseArray<Section> mSections = new SparseArray<>();
+    private final SparseArray<ByteBuffer> mRestored = new SparseArray<>();
+    private long mClockShiftNanos;
+    private long mGeneration;
+
+    private final Handler mHandler = Worker.BACKGROUND_COMPACTION.getHandler();
+
+    /** Maps {@code file}, creating it if needed, and loads the newest valid snapshot. */
+    StateSnapshot(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mMap = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 2 * SLOT_SIZE);
+        load();
+    }
+
+    /**
+     * Adds a section to future snapshots and immediately hands it its state from the previous
+     * process, if any. Section ids must stay stable across releases.
+     */
+    synchronized void register(int id, Section section) {
+        mSections.put(id, section);
+        ByteBuffer restored = mRestored.get(id);
+        if (restored == null) {
+            return;
+        }
+        mRestored.remove(id);
+        try {
+            section.readFrom(restored, mClockShiftNanos);
+        } catch (RuntimeException e) {
+            // A truncated or incompatible section only costs that component a cold start.
+            Log.e(TAG, "Error restoring section " + id, e);
+        }
+    }
+
+    synchronized void unregister(int id) {
+        mSections.remove(id);
+    }
+
+    void start() {
+        mHandler.post(mSnapshotRunnable);
+    }
+
+    /** Writes a final snapshot and stops. */
+    void close() {
+        mHandler.removeCallbacks(mSnapshotRunnable);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                write();
+                try {
+                    mFile.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing snapshot file", e);
+                }
+            }
+        });
+    }
+
+    private Runnable mSnapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            write();
+            mHandler.postDelayed(mSnapshotRunnable, SNAPSHOT_INTERVAL_MS);
+        }
+    };
+
+    private synchronized void write() {
+        mScratch.clear();
+        try {
+            for (int i = 0; i < mSections.size(); i++) {
+                int lengthPosition = mScratch.putInt(mSections.keyAt(i)).position();
+                mScratch.putInt(0);
+                mSections.valueAt(i).writeTo(mScratch);
+                mScratch.putInt(lengthPosition, mScratch.position() - lengthPosition - 4);
+            }
+        } catch (BufferOverflowException e) {
+            Log.e(TAG, "State does not fit in a snapshot slot, keeping the previous one");
+            return;
+        }
+        mScratch.flip();
+        mCrc.reset();
+        mCrc.update(mScratch.array(), 0, mScratch.limit());
+
+        // Overwrite the older slot; the newer one stays intact until this one is complete.
+        mGeneration++;
+        int slot = (int) (mGeneration & 1) * SLOT_SIZE;
+        mMap.putInt(slot, MAGIC);
+        mMap.putInt(slot + 4, VERSION);
+        mMap.putLong(slot + 8, mGeneration);
+        mMap.putLong(slot + 16, wallClockOffsetMs());
+        mMap.putLong(slot + 24, System.currentTimeMillis());
+        mMap.putInt(slot + 32, mScratch.limit());
+        mMap.putInt(slot + 36, (int) mCrc.getValue());
+        mMap.position(slot + HEADER_SIZE);
+        mMap.put(mScratch);
+        mMap.force();
+    }
+
+    private void load() {
+        int best = -1;
+        long bestGeneration = 0;
+        for (int slot = 0; slot < 2 * SLOT_SIZE; slot += SLOT_SIZE) {
+            if (isValid(slot) && (best < 0 || mMap.getLong(slot + 8) > bestGeneration)) {
+                best = slot;
+                bestGeneration = mMap.getLong(slot + 8);
+            }
+        }
+        if (best < 0) {
+            Log.d(TAG, "No usable snapshot, starting cold");
+            return;
+        }
+        // Kept even when the snapshot is ignored, so that the next write does not leave the
+        // stale slot as the newer one.
+        mGeneration = bestGeneration;
+        long ageMs = System.currentTimeMillis() - mMap.getLong(best + 24);
+        if (ageMs < 0 || ageMs > MAX_SNAPSHOT_AGE_MS) {
+            // A negative age means the wall clock is behind the previous process's, as on a
+            // board without a battery-backed clock that has not synced yet.
+            Log.w(TAG, "Ignoring snapshot " + mGeneration + " taken " + ageMs + " ms ago");
+            return;
+        }
+        mClockShiftNanos = TimeUnit.MILLISECONDS.toNanos(
+                mMap.getLong(best + 16) - wallClockOffsetMs());
+
+        ByteBuffer payload = mMap.duplicate();
+        payload.position(best + HEADER_SIZE);
+        payload.limit(best + HEADER_SIZE + mMap.getInt(best + 32));
+        payload = payload.slice();
+        while (payload.remaining() >= 8) {
+            int id = payload.getInt();
+            int length = payload.getInt();
+            if (length < 0 || length > payload.remaining()) {
+                break;
+            }
+            // Copied out so that the next snapshot can reuse the slot.
+            ByteBuffer section = ByteBuffer.allocate(length);
+            int end = payload.position() + length;
+            ByteBuffer source = payload.duplicate();
+            source.limit(end);
+            section.put(source);
+            section.flip();
+            mRestored.put(id, section);
+            payload.position(end);
+        }
+        Log.d(TAG, "Loaded snapshot " + mGeneration + " with " + mRestored.size() + " sections");
+    }
+
+    private boolean isValid(int slot) {
+        if (mMap.getInt(slot) != MAGIC || mMap.getInt(slot + 4) != VERSION) {
+            return false;
+        }
+        int length = mMap.getInt(slot + 32);
+        if (length < 0 || length > SLOT_SIZE - HEADER_SIZE) {
+            return false;
+        }
+        byte[] payload = new byte[length];
+        ByteBuffer source = mMap.duplicate();
+        source.position(slot + HEADER_SIZE);
+        source.get(payload);
+        mCrc.reset();
+        mCrc.update(payload, 0, length);
+        return (int) mCrc.getValue() == mMap.getInt(slot + 36);
+    }
+
+    // Wall-clock time minus monotonic time; changes across reboots.
+    private static long wallClockOffsetMs() {
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
+
+    static void putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Periodic ticks aligned to wall-clock multiples of the interval, shifted by a fixed per-device
+ * offset. Every tick is computed from the wall clock rather than from the previous one, so slow
+ * ticks do not push the schedule later and clock corrections are picked up at the next tick.
+ * Deriving the offset from the device id spreads a fleet evenly over the interval while each
+ * station keeps the same slot across reboots.
+ */
+class TickSchedule {
+    private final long mIntervalMs;
+    private final long mOffsetMs;
+
+    TickSchedule(long intervalMs, long offsetMs) {
+        mIntervalMs = intervalMs;
+        mOffsetMs = mod(offsetMs, intervalMs);
+    }
+
+    /** A schedule whose offset is a well-mixed hash of {@code deviceId}. */
+    static TickSchedule forDevice(String deviceId, long intervalMs) {
+        return new TickSchedule(intervalMs, mix(deviceId.hashCode()));
+    }
+
+    long getOffsetMs() {
+        return mOffsetMs;
+    }
+
+    /**
+     * The first tick strictly after {@code nowMs}. A tick that is running late therefore never
+     * gets a catch-up tick right behind it; the next one simply lands on the next slot.
+     */
+    long nextTickMs(long nowMs) {
+        return nowMs - mod(nowMs - mOffsetMs, mIntervalMs) + mIntervalMs;
+    }
+
+    private static long mod(long value, long modulus) {
+        long result = value % modulus;
+        return result < 0 ? result + modulus : result;
+    }
+
+    // The finalizer of MurmurHash3; String.hashCode() alone clusters similar serial numbers.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
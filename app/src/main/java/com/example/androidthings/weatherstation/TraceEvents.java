@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * The event table and dump format shared by {@link EventTrace} and {@link EventTraceDecoder}.
+ * Plain Java, so that the decoder runs on a host without the Android classes.
+ */
+final class TraceEvents {
+    static final int MAGIC = 0x57535452; // "WSTR"
+    static final int VERSION = 1;
+
+    // Levels, equal to the android.util.Log priorities.
+    static final int VERBOSE = 2;
+    static final int DEBUG = 3;
+    static final int INFO = 4;
+    static final int WARN = 5;
+    static final int ERROR = 6;
+    static final int ASSERT = 7;
+
+    // Event ids: stable, as dumps may outlive a release. Arguments in the comments.
+    static final int PUBLISH_QUEUED = 1;        // seq, express (1) or bulk (0)
+    static final int PUBLISH_SENT = 2;          // first seq, last seq
+    static final int PUBLISH_FAILED = 3;        // messages pending, express (1) or bulk (0)
+    static final int PUBLISH_DROPPED = 4;       // seq, express (1) or bulk (0)
+    static final int PUBLISH_NO_SAMPLES = 5;    // -, -
+    static final int NETWORK_AVAILABLE = 6;     // metered (1) or not (0), -
+    static final int NETWORK_LOST = 7;          // -, -
+    static final int SENSOR_FAULT = 8;          // sensor type, AnomalyDetector.Fault ordinal
+    static final int SENSOR_READ_FAILED = 9;    // consecutive failures, -
+    static final int GATEWAY_DISCONNECTED = 10; // stations left, -
+    static final int GATEWAY_PROTOCOL_ERROR = 11; // frame byte, -
+    static final int GATEWAY_REFUSED = 12;      // stations connected, -
+    static final int WATCHDOG_STALL = 13;       // heartbeat index, ms since last beat
+    static final int MEMORY_SHED = 14;          // consumer priority, bytes shed
+
+    // Indexed by event id.
+    static final String[] NAMES = new String[] {
+            null,
+            "publish_queued",
+            "publish_sent",
+            "publish_failed",
+            "publish_dropped",
+            "publish_no_samples",
+            "network_available",
+            "network_lost",
+            "sensor_fault",
+            "sensor_read_failed",
+            "gateway_disconnected",
+            "gateway_protocol_error",
+            "gateway_refused",
+            "watchdog_stall",
+            "memory_shed",
+    };
+    static final int[] LEVELS = new int[] {
+            ASSERT,
+            DEBUG,
+            DEBUG,
+            WARN,
+            WARN,
+            VERBOSE,
+            INFO,
+            INFO,
+            WARN,
+            DEBUG,
+            DEBUG,
+            WARN,
+            WARN,
+            ERROR,
+            WARN,
+    };
+
+    private TraceEvents() {}
+}
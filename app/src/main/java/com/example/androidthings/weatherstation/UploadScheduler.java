@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Handler;
+
+/**
+ * Gates upload work on the state of the default network instead of polling it. While offline
+ * no upload work is scheduled at all: losing the network posts a runnable that cancels it, and
+ * as soon as a usable network appears a single flush is posted, coalescing the burst of
+ * callbacks that usually accompanies a network change.
+ */
+class UploadScheduler {
+
+    private static final long FLUSH_COALESCE_MS = 500;
+
+    private final ConnectivityManager mConnectivityManager;
+    private final Handler mHandler;
+    private final Runnable mFlushRunnable;
+    private final Runnable mLostRunnable;
+
+    private volatile boolean mOnline;
+    private volatile boolean mMetered;
+    private boolean mRegistered;
+
+    /**
+     * @param handler handler the flush is posted on
+     * @param flushRunnable upload work to run when a network becomes usable
+     * @param lostRunnable run when the network goes away, to cancel periodic upload work
+     */
+    UploadScheduler(Context context, Handler handler, Runnable flushRunnable,
+                    Runnable lostRunnable) {
+        mConnectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        mHandler = handler;
+        mFlushRunnable = flushRunnable;
+        mLostRunnable = lostRunnable;
+    }
+
+    public synchronized void start() {
+        if (!mRegistered) {
+            mConnectivityManager.registerDefaultNetworkCallback(mNetworkCallback);
+            mRegistered = true;
+        }
+    }
+
+    public synchronized void stop() {
+        if (mRegistered) {
+            mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+            mRegistered = false;
+        }
+        mOnline = false;
+        mHandler.removeCallbacks(mFlushRunnable);
+    }
+
+    public boolean isOnline() {
+        return mOnline;
+    }
+
+    /** Metered links only get the express lane and one bulk request per tick. */
+    public boolean isMetered() {
+        return mMetered;
+    }
+
+    private void scheduleFlush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.postDelayed(mFlushRunnable, FLUSH_COALESCE_MS);
+    }
+
+    private ConnectivityManager.NetworkCallback mNetworkCallback =
+            new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(Network network) {
+            mMetered = mConnectivityManager.isActiveNetworkMetered();
+            mOnline = true;
+            EventTrace.record(TraceEvents.NETWORK_AVAILABLE, mMetered ? 1 : 0);
+            scheduleFlush();
+        }
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            boolean metered = !capabilities.hasCapability(
+                    NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+            if (metered != mMetered) {
+                mMetered = metered;
+                EventTrace.record(TraceEvents.NETWORK_AVAILABLE, mMetered ? 1 : 0);
+                scheduleFlush();
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            EventTrace.record(TraceEvents.NETWORK_LOST);
+            mOnline = false;
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.post(mLostRunnable);
+        }
+    };
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Liveness watchdog for the worker loops. Each loop registers a {@link Heartbeat} with a
+ * deadline and beats once per iteration. A loop that misses its deadline is reported to the
+ * {@link Listener} and, if it registered a restart action, restarted. Consecutive restarts back
+ * off exponentially so that a component whose hardware is gone is not restarted in a tight loop.
+ *
+ * <p>The intervals between beats are kept per loop in a {@link LatencyHistogram} and published,
+ * with violation and restart counts, the {@link Worker} metrics, the {@link I2cBusArbiter}
+ * statistics and the {@link PipelineTrace} stages, as a "health" payload every
+ * {@link #REPORT_INTERVAL_MS}.
+ */
+class Watchdog implements PubsubPublisher.PayloadSource {
+    private static final String TAG = Watchdog.class.getSimpleName();
+
+    private static final long CHECK_INTERVAL_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final long REPORT_INTERVAL_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final int MAX_BACKOFF_SHIFT = 5;
+
+    interface Listener {
+        /** Called on the watchdog thread, before the restart action runs. */
+        void onStall(String component, long stalledMs, boolean restarting);
+    }
+
+    /** One supervised loop. */
+    class Heartbeat {
+        final String mName;
+        private volatile long mDeadlineMs;
+        final Runnable mRestart;
+        final LatencyHistogram mIntervals = new LatencyHistogram();
+        private volatile long mLastBeat;
+        private volatile boolean mActive = true;
+        private volatile int mConsecutiveRestarts;
+        // Guarded by Watchdog.this.
+        private int mViolations;
+        private int mRestarts;
+
+        private Heartbeat(String name, long deadlineMs, Runnable restart) {
+            mName = name;
+            mDeadlineMs = deadlineMs;
+            mRestart = restart;
+            mLastBeat = SystemClock.elapsedRealtime();
+        }
+
+        /** Called by the loop once per iteration, from any thread. */
+        void beat() {
+            long now = SystemClock.elapsedRealtime();
+            if (mActive) {
+                mIntervals.record(now - mLastBeat);
+            }
+            mLastBeat = now;
+            mConsecutiveRestarts = 0;
+        }
+
+        /** For loops whose period changes at runtime. */
+        void setDeadline(long deadlineMs) {
+            mDeadlineMs = deadlineMs;
+        }
+
+        /** Loops that legitimately idle, e.g. an animation that is not playing, go inactive. */
+        void setActive(boolean active) {
+            if (active && !mActive) {
+                mLastBeat = SystemClock.elapsedRealtime();
+            }
+            mActive = active;
+        }
+    }
+
+    private final Listener mListener;
+    private final CopyOnWriteArrayList<Heartbeat> mHeartbeats = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<I2cBusArbiter> mBuses = new CopyOnWriteArrayList<>();
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+    private long mLastReport = SystemClock.elapsedRealtime();
+
+    Watchdog(Listener listener) {
+        mListener = listener;
+        // Deliberately not one of the Workers: it has to keep running when they are stuck.
+        mHandlerThread = new HandlerThread("watchdog", Process.THREAD_PRIORITY_FOREGROUND);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    /**
+     * Supervises a loop that beats at least every {@code deadlineMs}. {@code restart} may be
+     * null for loops that can only be reported; it runs on the watchdog thread.
+     */
+    Heartbeat register(String name, long deadlineMs, Runnable restart) {
+        Heartbeat heartbeat = new Heartbeat(name, deadlineMs, restart);
+        mHeartbeats.add(heartbeat);
+        return heartbeat;
+    }
+
+    void unregister(Heartbeat heartbeat) {
+        mHeartbeats.remove(heartbeat);
+    }
+
+    /** Adds the bus's queue and wait statistics to the health report. */
+    void addBus(I2cBusArbiter arbiter) {
+        mBuses.add(arbiter);
+    }
+
+    void removeBus(I2cBusArbiter arbiter) {
+        mBuses.remove(arbiter);
+    }
+
+    void start() {
+        mHandler.post(mCheckRunnable);
+    }
+
+    void close() {
+        mHandler.removeCallbacks(mCheckRunnable);
+        mHandlerThread.quitSafely();
+    }
+
+    private Runnable mCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            for (int i = 0; i < mHeartbeats.size(); i++) {
+                check(i, mHeartbeats.get(i), now);
+            }
+            mHandler.postDelayed(mCheckRunnable, CHECK_INTERVAL_MS);
+        }
+    };
+
+    private void check(int index, Heartbeat heartbeat, long now) {
+        if (!heartbeat.mActive) {
+            return;
+        }
+        long stalledMs = now - heartbeat.mLastBeat;
+        int shift = Math.min(heartbeat.mConsecutiveRestarts, MAX_BACKOFF_SHIFT);
+        if (stalledMs <= heartbeat.mDeadlineMs << shift) {
+            return;
+        }
+        boolean restarting = heartbeat.mRestart != null;
+        synchronized (this) {
+            heartbeat.mViolations++;
+            if (restarting) {
+                heartbeat.mRestarts++;
+            }
+        }
+        EventTrace.record(TraceEvents.WATCHDOG_STALL, index, stalledMs);
+        mListener.onStall(heartbeat.mName, stalledMs, restarting);
+        // Give the component a fresh deadline either way, so a stall is reported once per
+        // deadline rather than once per check.
+        heartbeat.mLastBeat = now;
+        if (!restarting) {
+            return;
+        }
+        heartbeat.mConsecutiveRestarts++;
+        try {
+            heartbeat.mRestart.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error restarting " + heartbeat.mName, e);
+        }
+    }
+
+    /**
+     * Returns a health report of the form {@code {"components": {"<name>": {"deadlineMs": ..,
+     * "violations": .., "restarts": .., "intervalMs": {...}}}, "workers": {"<name>": {...}},
+     * "i2c": {"<bus>": {...}}, "pipelineUs": {"<stage>": {...}}}} once per report interval, and
+     * null otherwise.
+     */
+    @Override
+    public synchronized JSONObject createPayload(String deviceId) throws JSONException {
+        long now = SystemClock.elapsedRealtime();
+        if (now - mLastReport < REPORT_INTERVAL_MS) {
+            return null;
+        }
+        mLastReport = now;
+        JSONObject components = new JSONObject();
+        for (int i = 0; i < mHeartbeats.size(); i++) {
+            Heartbeat heartbeat = mHeartbeats.get(i);
+            JSONObject component = new JSONObject();
+            component.put("deadlineMs", heartbeat.mDeadlineMs);
+            component.put("violations", heartbeat.mViolations);
+            component.put("restarts", heartbeat.mRestarts);
+            component.put("intervalMs", heartbeat.mIntervals.toJson());
+            components.put(heartbeat.mName, component);
+            heartbeat.mViolations = 0;
+            heartbeat.mRestarts = 0;
+            heartbeat.mIntervals.reset();
+        }
+        JSONObject workers = new JSONObject();
+        for (Worker worker : Worker.ALL) {
+            JSONObject metrics = worker.toJson();
+            if (metrics != null) {
+                workers.put(worker.getName(), metrics);
+            }
+        }
+        JSONObject buses = new JSONObject();
+        for (I2cBusArbiter arbiter : mBuses) {
+            buses.put(arbiter.getBus(), arbiter.toJson());
+        }
+        JSONObject messagePayload = new JSONObject();
+        messagePayload.put("deviceId", deviceId);
+        messagePayload.put("channel", "health");
+        messagePayload.put("timestamp", System.currentTimeMillis());
+        messagePayload.put("components", components);
+        messagePayload.put("workers", workers);
+        messagePayload.put("i2c", buses);
+        messagePayload.put("pipelineUs", PipelineTrace.toJson());
+        return messagePayload;
+    }
+}
@@ -20,31 +20,35 @@ import android.animation.Animator;
 import android.animation.AnimatorListenerAdapter;
 import android.animation.ValueAnimator;
 import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.graphics.Color;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.animation.LinearInterpolator;
 import android.widget.ImageView;
 
 import com.google.android.things.contrib.driver.apa102.Apa102;
-import com.google.android.things.contrib.driver.bmx280.Bmx280SensorDriver;
 import com.google.android.things.contrib.driver.button.Button;
 import com.google.android.things.contrib.driver.button.ButtonInputDriver;
-import com.google.android.things.contrib.driver.ht16k33.AlphanumericDisplay;
 import com.google.android.things.contrib.driver.pwmspeaker.Speaker;
 import com.google.android.things.pio.Gpio;
 import com.google.android.things.pio.PeripheralManagerService;
 import com.google.android.things.contrib.driver.rainbowhat.RainbowHat;
 
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class WeatherStationActivity extends Activity {
@@ -57,23 +61,51 @@ public class WeatherStationActivity extends Activity {
         MARIO
     }
 
-    private SensorManager mSensorManager;
-
     private ButtonInputDriver mButtonAInputDriver;
     private ButtonInputDriver mButtonBInputDriver;
     private ButtonInputDriver mButtonCInputDriver;
 
-    private Bmx280SensorDriver mEnvironmentalSensorDriver;
-    private AlphanumericDisplay mDisplay;
-    private AppMode mAppMode;
-
-     private Thread ledThread;
-    private Thread displayThread;
+    private I2cBusArbiter mI2cArbiter;
+    private Bmx280Sampler mEnvironmentalSampler;
+
+    // How often each consumer needs a reading; the sampler lets the BMP280 sleep in between.
+    private static final long BAROMETER_INTERVAL_MS = 5000;
+    // After a fault the sensor is read at full rate for a while, to confirm it or see it clear.
+    private static final long FAULT_WATCH_MS = 60000;
+    private final SamplingPlanner mSamplingPlanner = new SamplingPlanner();
+    private SamplingPlanner.Request mFaultWatchRequest;
+
+    // Field recordings: readings go to RECORDING_FILE when enabled, and REPLAY_FILE, if pushed
+    // to the device, is played back instead of reading the BMP280.
+    private static final String RECORDING_FILE = "sensors.rec";
+    private static final String REPLAY_FILE = "replay.rec";
+    private SensorRecorder mRecorder;
+    private SensorReplayer mReplayer;
+    private Thread mReplayThread;
+    private SegmentDisplay mDisplay;
+    // Read by the audio, render and sensor threads.
+    private volatile AppMode mAppMode;
+
+    // Text of the current mode, for restarting the scroll loop.
+    private String mDisplayText;
+    // Scroll loop state, only touched on the render worker.
+    private static final int DISPLAY_LENGTH = 4;
+    private static final long DISPLAY_STEP_MS = 500;
+    private final Handler mRenderHandler = Worker.RENDER.getHandler();
+    private AppMode mScrollMode;
+    private String mScrollText;
+    private int mScrollStep;
 
 
     private Apa102 mLedstrip;
+    private LedAnimator mLedAnimator;
+    private LedAnimation mKnightRiderAnimation;
+    private LedAnimation mFaultAnimation;
     private int[] mRainbow = new int[7];
+    // Reused on every barometer update.
+    private final int[] mBarometerColors = new int[mRainbow.length];
     private static final int LEDSTRIP_BRIGHTNESS = 30;
+    private static final int KNIGHT_RIDER_STEP_MS = 100;
     private static final float BAROMETER_RANGE_LOW = 965.f;
     private static final float BAROMETER_RANGE_HIGH = 1035.f;
     private static final float BAROMETER_RANGE_SUNNY = 1010.f;
@@ -85,71 +117,202 @@ public class WeatherStationActivity extends Activity {
 
 
     private int SPEAKER_READY_DELAY_MS = 300;
+    private static final int FAULT_BEEP_FREQUENCY_HZ = 2000;
+    private static final int FAULT_BEEP_MS = 150;
+    private static final int FAULT_FLASH_MS = 1000;
     private Speaker mSpeaker;
+    private final Handler mAudioHandler = Worker.REALTIME_AUDIO.getHandler();
+    // The tune being played, only touched on the audio worker.
+    private List<Integer> mMarioFrequencies;
+    private List<Integer> mMarioLengths;
+    private List<Integer> mMarioDelays;
+    private int mMarioNote;
+    private long mMarioNoteStart;
+    private Handler mMainHandler;
+
+    private volatile float mLastTemperature;
+    private volatile float mLastPressure;
+
+    // Warm restart: state checkpointed by the previous process, restored section by section.
+    private static final String SNAPSHOT_FILE = "state.snapshot";
+    // Event trace, written when the app crashes or is destroyed.
+    private static final String TRACE_FILE = "trace.bin";
+    // Holding button A this long writes the trace on the spot, to catch a glitch while it
+    // happens; into its own file, so that the dump on destroy does not overwrite it.
+    private static final long TRACE_DUMP_PRESS_MS = 3000;
+    private static final String TRACE_DUMP_FILE = "trace-ondemand.bin";
+    private static final int SNAPSHOT_SECTION_ACTIVITY = 1;
+    private StateSnapshot mSnapshot;
+    private AppMode mRestoredMode = AppMode.HOME;
+
+    // Publishing runs in a service that outlives the activity. It is bound for control only;
+    // samples reach it through its ring.
+    private volatile PublisherService mPublisherService;
+    private boolean mPublisherBound;
+    private GatewayServer mGatewayServer;
+    private ImageView mImageView;
 
-    private float mLastTemperature;
-    private float mLastPressure;
+    // Every loop beats a heartbeat; the watchdog reports and restarts the ones that stall.
+    private static final long MAIN_HEARTBEAT_INTERVAL_MS = 1000;
+    private static final long MAIN_HEARTBEAT_DEADLINE_MS = 5000;
+    private static final long DISPLAY_HEARTBEAT_DEADLINE_MS = 5000;
+    private static final long SPEAKER_HEARTBEAT_DEADLINE_MS = 5000;
+    private Watchdog mWatchdog;
+    private MemoryBudget mMemoryBudget;
+    private Watchdog.Heartbeat mMainHeartbeat;
+    private Watchdog.Heartbeat mDisplayHeartbeat;
+    private Watchdog.Heartbeat mSpeakerHeartbeat;
+    private Watchdog.Heartbeat mSamplerHeartbeat;
+    private Watchdog.Heartbeat mPublisherHeartbeat;
+
+    // Filtering stage between the BMP280 and its consumers, one chain per sensor.
+    private final FilterProfile mFilterProfile = FilterProfile.fromName(BuildConfig.FILTER_PROFILE);
+    private final FilteredSensorListener mTemperatureFilter = new FilteredSensorListener(
+            Sensor.TYPE_AMBIENT_TEMPERATURE, mFilterProfile.createChain(),
+            AnomalyDetector.forTemperature());
+    private final FilteredSensorListener mPressureFilter = new FilteredSensorListener(
+            Sensor.TYPE_PRESSURE, mFilterProfile.createChain(), AnomalyDetector.forPressure());
+
+    // Callback when the filtering stage delivers temperature or pressure data.
+    private SampleListener mSampleListener = new SampleListener() {
+        @Override
+        public void onSample(int sensorType, float value, long timestampNanos) {
+            if (sensorType == Sensor.TYPE_AMBIENT_TEMPERATURE) {
+                mLastTemperature = value;
+            } else if (sensorType == Sensor.TYPE_PRESSURE) {
+                mLastPressure = value;
+                runOnUiThread(mUpdateBarometerRunnable);
+            }
+        }
+    };
 
-    private PubsubPublisher mPubsubPublisher;
-    private ImageView mImageView;
+    // Samples arrive on the I2C arbiter thread, the barometer view lives on the UI thread.
+    private Runnable mUpdateBarometerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateBarometer(mLastPressure);
+        }
+    };
 
-    // Callback used when we register the BMP280 sensor driver with the system's SensorManager.
-    private SensorManager.DynamicSensorCallback mDynamicSensorCallback
-            = new SensorManager.DynamicSensorCallback() {
+    // Callback when the anomaly detector flags a sensor fault or sees the sensor recover. Runs on
+    // the I2C arbiter thread, so everything but the trace is handed to the main thread.
+    private SensorFaultListener mFaultListener = new SensorFaultListener() {
         @Override
-        public void onDynamicSensorConnected(Sensor sensor) {
-            if (sensor.getType() == Sensor.TYPE_AMBIENT_TEMPERATURE) {
-                // Our sensor is connected. Start receiving temperature data.
-                mSensorManager.registerListener(mTemperatureListener, sensor,
-                        SensorManager.SENSOR_DELAY_NORMAL);
-                if (mPubsubPublisher != null) {
-                    mSensorManager.registerListener(mPubsubPublisher.getTemperatureListener(), sensor,
-                            SensorManager.SENSOR_DELAY_NORMAL);
-                }
-            } else if (sensor.getType() == Sensor.TYPE_PRESSURE) {
-                // Our sensor is connected. Start receiving pressure data.
-                mSensorManager.registerListener(mPressureListener, sensor,
-                        SensorManager.SENSOR_DELAY_NORMAL);
-                if (mPubsubPublisher != null) {
-                    mSensorManager.registerListener(mPubsubPublisher.getPressureListener(), sensor,
-                            SensorManager.SENSOR_DELAY_NORMAL);
+        public void onSensorFault(final int sensorType, final AnomalyDetector.Fault fault,
+                                  final float value) {
+            EventTrace.record(TraceEvents.SENSOR_FAULT, sensorType, fault.ordinal());
+            if (fault == AnomalyDetector.Fault.NONE) {
+                return;
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleSensorFault(sensorType, fault, value);
                 }
+            });
+        }
+    };
+
+    private void handleSensorFault(int sensorType, AnomalyDetector.Fault fault, float value) {
+        mFaultWatchRequest.setInterval(Bmx280Sampler.MIN_INTERVAL_MS);
+        mMainHandler.removeCallbacks(mEndFaultWatchRunnable);
+        mMainHandler.postDelayed(mEndFaultWatchRunnable, FAULT_WATCH_MS);
+        PublisherService service = mPublisherService;
+        if (service != null) {
+            service.publishAlert("sensor_fault",
+                    "sensor type " + sensorType + ": " + fault + ", value " + value);
+        }
+        showFault();
+    }
+
+    private Watchdog.Listener mStallListener = new Watchdog.Listener() {
+        @Override
+        public void onStall(String component, long stalledMs, boolean restarting) {
+            Log.w(TAG, component + " stalled for " + stalledMs + " ms"
+                    + (restarting ? ", restarting" : ""));
+            PublisherService service = mPublisherService;
+            if (service != null) {
+                service.publishAlert("watchdog_stall", component + " stalled for "
+                        + stalledMs + " ms");
             }
         }
+    };
 
+    // Proves the UI thread still processes messages; it can only be reported, not restarted.
+    private Runnable mMainHeartbeatRunnable = new Runnable() {
         @Override
-        public void onDynamicSensorDisconnected(Sensor sensor) {
-            super.onDynamicSensorDisconnected(sensor);
+        public void run() {
+            mMainHeartbeat.beat();
+            mMainHandler.postDelayed(mMainHeartbeatRunnable, MAIN_HEARTBEAT_INTERVAL_MS);
         }
     };
 
-    // Callback when SensorManager delivers temperature data.
-    private SensorEventListener mTemperatureListener = new SensorEventListener() {
+    private Runnable mEndFaultWatchRunnable = new Runnable() {
         @Override
-        public void onSensorChanged(SensorEvent event) {
-            mLastTemperature = event.values[0];
-            //Log.d(TAG, "sensor changed: " + mLastTemperature);
+        public void run() {
+            mFaultWatchRequest.setInterval(SamplingPlanner.NOT_NEEDED);
+        }
+    };
+
+    // Plan changes can come from any thread; the sampler is owned by the UI thread.
+    private SamplingPlanner.Listener mSamplingPlanListener = new SamplingPlanner.Listener() {
+        @Override
+        public void onIntervalChanged(long intervalMs) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mEnvironmentalSampler != null) {
+                        mEnvironmentalSampler.setInterval(mSamplingPlanner.getIntervalMs());
+                    }
+                }
+            });
+        }
+    };
 
+    // Hands the service what it needs from the activity. The gateway, if any, was started in
+    // onCreate, which runs before the connection is delivered.
+    private ServiceConnection mPublisherConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            PublisherService service = ((PublisherService.LocalBinder) binder).getService();
+            service.setMemoryBudget(mMemoryBudget);
+            mPublisherHeartbeat = mWatchdog.register("publisher",
+                    PubsubPublisher.HEARTBEAT_DEADLINE_MS, mRestartPublisherRunnable);
+            service.setHeartbeat(mPublisherHeartbeat);
+            service.addPayloadSource(mWatchdog);
+            if (mGatewayServer != null) {
+                service.addPayloadSource(mGatewayServer);
+            }
+            mPublisherService = service;
         }
 
         @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {
-            //Log.d(TAG, "accuracy changed: " + accuracy);
+        public void onServiceDisconnected(ComponentName name) {
+            // Only when the process dies, which takes the activity along.
+            mPublisherService = null;
         }
     };
 
-    // Callback when SensorManager delivers pressure data.
-    private SensorEventListener mPressureListener = new SensorEventListener() {
+    private StateSnapshot.Section mSnapshotSection = new StateSnapshot.Section() {
         @Override
-        public void onSensorChanged(SensorEvent event) {
-            mLastPressure = event.values[0];
-            //Log.d(TAG, "sensor changed: " + mLastPressure);
-            updateBarometer(mLastPressure);
+        public void writeTo(ByteBuffer out) {
+            AppMode mode = mAppMode;
+            out.putInt(mode != null ? mode.ordinal() : AppMode.HOME.ordinal());
+            out.putFloat(mLastTemperature);
+            out.putFloat(mLastPressure);
         }
 
         @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {
-            //Log.d(TAG, "accuracy changed: " + accuracy);
+        public void readFrom(ByteBuffer in, long clockShiftNanos) {
+            int mode = in.getInt();
+            if (mode >= 0 && mode < AppMode.values().length) {
+                mRestoredMode = AppMode.values()[mode];
+            }
+            mLastTemperature = in.getFloat();
+            mLastPressure = in.getFloat();
+            if (mLastPressure > 0) {
+                runOnUiThread(mUpdateBarometerRunnable);
+            }
         }
     };
 
@@ -161,7 +324,20 @@ public class WeatherStationActivity extends Activity {
         setContentView(R.layout.activity_main);
         mImageView = (ImageView) findViewById(R.id.imageView);
 
-        mSensorManager = ((SensorManager) getSystemService(SENSOR_SERVICE));
+        mMainHandler = new Handler(getMainLooper());
+        EventTrace.dumpOnCrash(new File(getFilesDir(), TRACE_FILE));
+        mMemoryBudget = MemoryBudget.forBoard();
+        mWatchdog = new Watchdog(mStallListener);
+        mMainHeartbeat = mWatchdog.register("main", MAIN_HEARTBEAT_DEADLINE_MS, null);
+        mMainHandler.post(mMainHeartbeatRunnable);
+
+        try {
+            mSnapshot = new StateSnapshot(new File(getFilesDir(), SNAPSHOT_FILE));
+            mSnapshot.register(SNAPSHOT_SECTION_ACTIVITY, mSnapshotSection);
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening state snapshot, starting cold", e);
+            mSnapshot = null;
+        }
 
         // GPIO button that generates 'A' keypresses (handled by onKeyUp method)
         try {
@@ -198,21 +374,52 @@ public class WeatherStationActivity extends Activity {
         // the pins a certain way; this may be necessary if the default address conflicts with
         // another peripheral's. In our case, the temperature sensor and the display have
         // different default addresses, so everything just works.
-        try {
-            mEnvironmentalSensorDriver = new Bmx280SensorDriver(BoardDefaults.getI2cBus());
-            mSensorManager.registerDynamicSensorCallback(mDynamicSensorCallback);
-            mEnvironmentalSensorDriver.registerTemperatureSensor();
-            mEnvironmentalSensorDriver.registerPressureSensor();
-            Log.d(TAG, "Initialized I2C BMP280");
-        } catch (IOException e) {
-            throw new RuntimeException("Error initializing BMP280", e);
+        // All traffic on the bus goes through one arbiter so that sensor reads are never stuck
+        // behind display refreshes.
+        mI2cArbiter = new I2cBusArbiter(BoardDefaults.getI2cBus());
+        mWatchdog.addBus(mI2cArbiter);
+        mTemperatureFilter.addListener(mSampleListener);
+        mPressureFilter.addListener(mSampleListener);
+        mTemperatureFilter.setFaultListener(mFaultListener);
+        mPressureFilter.setFaultListener(mFaultListener);
+        mSamplingPlanner.request("barometer", BAROMETER_INTERVAL_MS);
+        mFaultWatchRequest = mSamplingPlanner.request("faultWatch", SamplingPlanner.NOT_NEEDED);
+        if (BuildConfig.SENSOR_RECORDING) {
+            try {
+                mRecorder = new SensorRecorder(new File(getFilesDir(), RECORDING_FILE),
+                        Worker.BACKGROUND_COMPACTION.getHandler());
+                mRecorder.setMaxBytes(
+                        mMemoryBudget.getDiskShare(MemoryBudget.DISK_SHARE_RECORDING));
+                mMemoryBudget.register("recorder", MemoryBudget.PRIORITY_DIAGNOSTICS, mRecorder);
+                // Field captures are meant to have every reading.
+                mSamplingPlanner.request("recorder", Bmx280Sampler.MIN_INTERVAL_MS);
+                mTemperatureFilter.setRawListener(mRecorder);
+                mPressureFilter.setRawListener(mRecorder);
+            } catch (IOException e) {
+                Log.e(TAG, "Error starting sensor recording", e);
+            }
+        }
+        File replayFile = new File(getFilesDir(), REPLAY_FILE);
+        if (replayFile.exists()) {
+            startReplay(replayFile);
+        } else {
+            mSamplerHeartbeat = mWatchdog.register("sampler",
+                    Bmx280Sampler.HEARTBEAT_DEADLINE_MS, mRestartSamplerRunnable);
+            try {
+                startSampler();
+                Log.d(TAG, "Initialized I2C BMP280");
+            } catch (IOException e) {
+                throw new RuntimeException("Error initializing BMP280", e);
+            }
         }
 
         try {
-            mDisplay = new AlphanumericDisplay(BoardDefaults.getI2cBus());
+            mDisplay = new SegmentDisplay(BoardDefaults.getI2cBus(), mI2cArbiter);
             mDisplay.setEnabled(true);
             mDisplay.clear();
-            updateAppMode(AppMode.HOME);
+            mDisplayHeartbeat = mWatchdog.register("display", DISPLAY_HEARTBEAT_DEADLINE_MS,
+                    mRestartDisplayRunnable);
+            updateAppMode(mRestoredMode);
             Log.d(TAG, "Initialized I2C Display");
         } catch (IOException e) {
             Log.e(TAG, "Error initializing display", e);
@@ -223,6 +430,19 @@ public class WeatherStationActivity extends Activity {
         try {
             mLedstrip = new Apa102(BoardDefaults.getSpiBus(), Apa102.Mode.BGR);
             mLedstrip.setBrightness(LEDSTRIP_BRIGHTNESS);
+            mLedAnimator = new LedAnimator(mLedstrip, mRainbow.length);
+            mLedAnimator.setHeartbeat(mWatchdog.register("ledAnimator",
+                    LedAnimator.HEARTBEAT_DEADLINE_MS, new Runnable() {
+                        @Override
+                        public void run() {
+                            LedAnimator animator = mLedAnimator;
+                            if (animator != null) {
+                                animator.restart();
+                            }
+                        }
+                    }));
+            mKnightRiderAnimation = createKnightRiderAnimation();
+            mFaultAnimation = createFaultAnimation();
         } catch (IOException e) {
             mLedstrip = null; // Led strip is optional.
         }
@@ -247,6 +467,9 @@ public class WeatherStationActivity extends Activity {
         // PWM speaker
         try {
             mSpeaker = RainbowHat.openPiezo();
+            mSpeakerHeartbeat = mWatchdog.register("speaker", SPEAKER_HEARTBEAT_DEADLINE_MS,
+                    mRestartSpeakerRunnable);
+            mSpeakerHeartbeat.setActive(false);
             final ValueAnimator slide = ValueAnimator.ofFloat(440, 440 * 4);
             slide.setDuration(50);
             slide.setRepeatCount(5);
@@ -258,7 +481,7 @@ public class WeatherStationActivity extends Activity {
                         float v = (float) animation.getAnimatedValue();
                         mSpeaker.play(v);
                     } catch (IOException e) {
-                        throw new RuntimeException("Error sliding speaker", e);
+                        Log.e(TAG, "Error sliding speaker", e);
                     }
                 }
             });
@@ -268,12 +491,11 @@ public class WeatherStationActivity extends Activity {
                     try {
                         mSpeaker.stop();
                     } catch (IOException e) {
-                        throw new RuntimeException("Error sliding speaker", e);
+                        Log.e(TAG, "Error sliding speaker", e);
                     }
                 }
             });
-            Handler handler = new Handler(getMainLooper());
-            handler.postDelayed(new Runnable() {
+            mMainHandler.postDelayed(new Runnable() {
                 @Override
                 public void run() {
                     slide.start();
@@ -283,113 +505,244 @@ public class WeatherStationActivity extends Activity {
             throw new RuntimeException("Error initializing speaker", e);
         }
 
-        // start Cloud PubSub Publisher if cloud credentials are present.
-        int credentialId = getResources().getIdentifier("credentials", "raw", getPackageName());
-        if (credentialId != 0) {
-            try {
-                mPubsubPublisher = new PubsubPublisher(this, "weatherstation",
-                        BuildConfig.PROJECT_ID, BuildConfig.PUBSUB_TOPIC, credentialId);
-                mPubsubPublisher.start();
-            } catch (IOException e) {
-                Log.e(TAG, "error creating pubsub publisher", e);
+        // start Cloud PubSub Publisher if cloud credentials are present. It keeps running, and
+        // uploading, after the activity is gone.
+        if (PublisherService.hasCredentials(this)) {
+            mTemperatureFilter.addListener(PublisherService.getSampleRing());
+            mPressureFilter.addListener(PublisherService.getSampleRing());
+            mSamplingPlanner.request("publisher", PubsubPublisher.SAMPLE_INTERVAL_MS);
+            Intent intent = new Intent(this, PublisherService.class);
+            startService(intent);
+            mPublisherBound = bindService(intent, mPublisherConnection, BIND_AUTO_CREATE);
+            if (BuildConfig.GATEWAY_PORT != 0) {
+                startGateway();
             }
         }
+
+        if (mSnapshot != null) {
+            mSnapshot.start();
+        }
+        mWatchdog.start();
+        mMemoryBudget.start();
+        mSamplingPlanner.setListener(mSamplingPlanListener);
     }
 
-    enum LedStripDirection {
-        Forth,
-        Back
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (mMemoryBudget != null) {
+            mMemoryBudget.onTrimMemory(level);
+        }
     }
 
+    private void startSampler() throws IOException {
+        mEnvironmentalSampler = new Bmx280Sampler(BoardDefaults.getI2cBus(), mI2cArbiter,
+                mFilterProfile.getOversampling(), mTemperatureFilter, mPressureFilter);
+        mEnvironmentalSampler.setHeartbeat(mSamplerHeartbeat);
+        mEnvironmentalSampler.setInterval(mSamplingPlanner.getIntervalMs());
+        mEnvironmentalSampler.start();
+    }
 
-    private void startMarioMode() {
-        Log.d(TAG,"Start Home Mode");
-        Runnable runnable = new Runnable() {
+    // Watchdog restarts run on the watchdog thread and hop over to the UI thread, which owns the
+    // components.
+    private Runnable mRestartSamplerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mEnvironmentalSampler == null) {
+                        return;
+                    }
+                    mEnvironmentalSampler.close();
+                    mEnvironmentalSampler = null;
+                    try {
+                        startSampler();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error restarting BMP280", e);
+                    }
+                }
+            });
+        }
+    };
+
+    private Runnable mRestartDisplayRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mDisplay != null && mAppMode != null) {
+                        startDisplayLoop(mAppMode, mDisplayText);
+                    }
+                }
+            });
+        }
+    };
+
+    private Runnable mRestartSpeakerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mAppMode == AppMode.MARIO) {
+                        startMarioTheme();
+                    }
+                }
+            });
+        }
+    };
+
+    // The service restarts the publisher on its own main thread.
+    private Runnable mRestartPublisherRunnable = new Runnable() {
+        @Override
+        public void run() {
+            PublisherService service = mPublisherService;
+            if (service != null) {
+                service.restartPublisher();
+            }
+        }
+    };
+
+    private void startReplay(File replayFile) {
+        try {
+            mReplayer = new SensorReplayer(new FileInputStream(replayFile))
+                    .addTarget(Sensor.TYPE_AMBIENT_TEMPERATURE, mTemperatureFilter)
+                    .addTarget(Sensor.TYPE_PRESSURE, mPressureFilter)
+                    .setSpeed(BuildConfig.REPLAY_SPEED)
+                    .setTimeBase(SystemClock.elapsedRealtimeNanos());
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening sensor replay", e);
+            return;
+        }
+        mReplayThread = Worker.SENSOR_INGEST.newThread(new Runnable() {
             @Override
             public void run() {
-                while (mAppMode == AppMode.MARIO) {
-                    floatTextOnDisplay("MARIO MODE",AppMode.MARIO);
+                try {
+                    long start = SystemClock.elapsedRealtime();
+                    long count = mReplayer.replay();
+                    Log.d(TAG, "Replayed " + count + " readings in "
+                            + (SystemClock.elapsedRealtime() - start) + " ms");
+                } catch (IOException e) {
+                    Log.e(TAG, "Error reading sensor replay", e);
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Sensor replay interrupted");
                 }
             }
-        };
-        displayThread =  new Thread(runnable);
-        displayThread.start();
+        }, "sensorReplay");
+        mReplayThread.start();
+        Log.d(TAG, "Replaying " + replayFile + " instead of the BMP280");
+    }
+
+    private void startGateway() {
+        try {
+            mGatewayServer = new GatewayServer(BuildConfig.GATEWAY_PORT);
+        } catch (IOException e) {
+            Log.e(TAG, "Error starting gateway", e);
+            return;
+        }
+        mGatewayServer.setHeapLimit(mMemoryBudget.getHeapShare(MemoryBudget.HEAP_SHARE_GATEWAY));
+        mMemoryBudget.register("gateway", MemoryBudget.PRIORITY_RELAY, mGatewayServer);
+        mGatewayServer.start();
+        Log.d(TAG, "Gateway listening on port " + mGatewayServer.getPort());
+    }
 
-        Runnable speakerRunnable = new Runnable() {
+    private void startMarioMode() {
+        Log.d(TAG,"Start Home Mode");
+        startDisplayLoop(AppMode.MARIO, "MARIO MODE");
+        startMarioTheme();
+    }
+
+    private void startMarioTheme() {
+        mAudioHandler.post(new Runnable() {
             @Override
             public void run() {
+                mAudioHandler.removeCallbacks(mMarioNoteRunnable);
+                if (mSpeakerHeartbeat != null) {
+                    mSpeakerHeartbeat.setActive(true);
+                }
                 playMarioTheme();
             }
-        };
-        new Thread(speakerRunnable).start();
+        });
     }
 
     private void startHomeMode() {
         Log.d(TAG,"Start Home Mode");
-        Runnable runnable = new Runnable() {
+        startDisplayLoop(AppMode.HOME, "A=HOME, B=KNIGHT RIDER MODE, C=MARIO MODE.");
+    }
+
+    /**
+     * Scrolls {@code text} on the render worker until the mode changes. Starting a new loop
+     * replaces the previous one, which is also how the watchdog restarts a stalled one.
+     */
+    private void startDisplayLoop(final AppMode mode, final String text) {
+        mDisplayText = text;
+        mRenderHandler.post(new Runnable() {
             @Override
             public void run() {
-                while (mAppMode == AppMode.HOME) {
-                    floatTextOnDisplay("A=HOME, B=KNIGHT RIDER MODE, C=MARIO MODE.",AppMode.HOME);
-                }
+                mRenderHandler.removeCallbacks(mDisplayStepRunnable);
+                mScrollMode = mode;
+                mScrollText = text;
+                mScrollStep = 0;
+                mDisplayStepRunnable.run();
             }
-        };
-        displayThread =  new Thread(runnable);
-        displayThread.start();
+        });
     }
 
-    public void knightRiderLeds() {
-        LedStripDirection direction = LedStripDirection.Forth;
+    private Runnable mDisplayStepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mAppMode != mScrollMode) {
+                return;
+            }
+            if (mDisplayHeartbeat != null) {
+                mDisplayHeartbeat.beat();
+            }
+            if (mScrollStep == 0) {
+                clearDisplay();
+            }
+            floatTextOnDisplay(mScrollText, mScrollStep);
+            mScrollStep = (mScrollStep + 1) % (mScrollText.length() + DISPLAY_LENGTH);
+            mRenderHandler.postDelayed(mDisplayStepRunnable, DISPLAY_STEP_MS);
+        }
+    };
+
+    // Two red lights sweeping forth and back, cross-faded at 60 fps.
+    private LedAnimation createKnightRiderAnimation() {
         int numberOfLights = 2;
-        List<Integer> activeLeds = new ArrayList<Integer>();
         int numberOfStates = mRainbow.length + numberOfLights;
-        while (mAppMode == AppMode.KNIGHTRIGER) {
+        LedAnimation.Builder builder = new LedAnimation.Builder(mRainbow.length)
+                .setFps(60)
+                .setEasing(LedAnimation.Easing.LINEAR);
+        long time = 0;
+        for (int pass = 0; pass < 2; pass++) {
             for (int i = 0; i < numberOfStates; i++) {
-                activeLeds.clear();
-                for(int j = 0; j< numberOfLights;j++) {
-                    int ledIndex = 0;
-                    switch (direction) {
-                        case Forth:
-                            ledIndex = i + j - 2;
-                            break;
-                        case Back:
-                            ledIndex = numberOfStates - i + j - 2;
-                            break;
-                    }
+                int[] colors = new int[mRainbow.length];
+                for (int j = 0; j < numberOfLights; j++) {
+                    int ledIndex = pass == 0 ? i + j - 2 : numberOfStates - i + j - 2;
                     if (ledIndex >= 0 && ledIndex < mRainbow.length) {
-                        activeLeds.add(ledIndex);
+                        colors[ledIndex] = Color.RED;
                     }
                 }
-                exclusivlyActivateLeds(activeLeds, Color.RED);
-                try {
-                    Thread.currentThread().sleep(100);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "InterruptedException");
-                }
-            }
-            if (direction == LedStripDirection.Forth) {
-                direction = LedStripDirection.Back;
-            } else {
-                direction = LedStripDirection.Forth;
+                builder.addKeyframe(time, colors);
+                time += KNIGHT_RIDER_STEP_MS;
             }
         }
-        activeLeds.clear();
-        exclusivlyActivateLeds(activeLeds,Color.TRANSPARENT);
+        // Close the loop on the first keyframe, all leds off.
+        return builder.addKeyframe(time, new int[mRainbow.length]).build();
     }
 
-    public synchronized void exclusivlyActivateLeds(List<Integer> leds, int color) {
-        for (int i = 0; i < mRainbow.length; i++) {
-            mRainbow[i] = Color.TRANSPARENT;
-        }
-
-        for (int ledIndex : leds) {
-            mRainbow[ledIndex] = color;
-        }
-        try {
-            mLedstrip.write(mRainbow);
-        } catch (IOException e) {
-            Log.e(TAG, "IOException");
-        }
+    // The whole strip red for a second.
+    private LedAnimation createFaultAnimation() {
+        int[] red = new int[mRainbow.length];
+        Arrays.fill(red, Color.RED);
+        return new LedAnimation.Builder(mRainbow.length)
+                .setFps(10)
+                .setEasing(LedAnimation.Easing.STEP)
+                .addKeyframe(0, red)
+                .addKeyframe(FAULT_FLASH_MS, new int[mRainbow.length])
+                .build();
     }
 
     private void playMarioTheme() {
@@ -705,25 +1058,52 @@ public class WeatherStationActivity extends Activity {
         delays.add(360 );
 
 
-        for(int i = 0; i< frequencies.size();i++) {
-            if(mAppMode != AppMode.MARIO) {
-                break;
+        mMarioFrequencies = frequencies;
+        mMarioLengths = lengths;
+        mMarioDelays = delays;
+        mMarioNote = 0;
+        mMarioNoteStart = SystemClock.uptimeMillis();
+        mMarioNoteRunnable.run();
+    }
+
+    // One note per run, scheduled against absolute times so that the tune does not drift when a
+    // note runs late. Only touched on the audio worker.
+    private Runnable mMarioNoteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mAppMode != AppMode.MARIO || mMarioNote >= mMarioFrequencies.size()) {
+                if (mSpeakerHeartbeat != null) {
+                    mSpeakerHeartbeat.setActive(false);
+                }
+                mSpeakerStopRunnable.run();
+                return;
+            }
+            if (mSpeakerHeartbeat != null) {
+                mSpeakerHeartbeat.beat();
             }
+            int i = mMarioNote++;
             try {
-                mSpeaker.play(frequencies.get(i));
-                Thread.currentThread().sleep(lengths.get(i));
-                mSpeaker.stop();
-                Thread.currentThread().sleep(delays.get(i));
-            } catch (Exception e) {
+                mSpeaker.play(mMarioFrequencies.get(i));
+            } catch (IOException e) {
                 Log.e(TAG,"Error playing song");
             }
+            long stopAt = mMarioNoteStart + mMarioLengths.get(i);
+            mMarioNoteStart = stopAt + mMarioDelays.get(i);
+            mAudioHandler.postAtTime(mSpeakerStopRunnable, stopAt);
+            mAudioHandler.postAtTime(mMarioNoteRunnable, mMarioNoteStart);
         }
-        try {
-            mSpeaker.stop();
-        } catch (IOException e) {
+    };
 
+    private Runnable mSpeakerStopRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                mSpeaker.stop();
+            } catch (IOException e) {
+                Log.e(TAG, "Error stopping speaker", e);
+            }
         }
-    }
+    };
 
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
@@ -731,6 +1111,9 @@ public class WeatherStationActivity extends Activity {
         switch (keyCode) {
             case KeyEvent.KEYCODE_A:
                 mode = AppMode.HOME;
+                if (event.getRepeatCount() == 0) {
+                    mMainHandler.postDelayed(mTraceDumpPressRunnable, TRACE_DUMP_PRESS_MS);
+                }
                 try {
                     aButtonLed.setValue(true);
                 } catch (IOException e) {
@@ -765,6 +1148,9 @@ public class WeatherStationActivity extends Activity {
         if (newMode != null && newMode == mAppMode) {
             return;
         }
+        if (mAppMode == AppMode.KNIGHTRIGER && mLedAnimator != null) {
+            mLedAnimator.stop();
+        }
         mAppMode = newMode;
         switch (newMode) {
             case HOME:
@@ -780,32 +1166,18 @@ public class WeatherStationActivity extends Activity {
 
     private void startKnightRiderMode() {
         Log.d(TAG,"Start Knight Rider Mode");
-        Runnable ledRunnable = new Runnable() {
-            @Override
-            public void run() {
-                knightRiderLeds();
-            }
-        };
-        Runnable displayRunnable = new Runnable() {
-            @Override
-            public void run() {
-                while (mAppMode == AppMode.KNIGHTRIGER) {
-                    floatTextOnDisplay("KNIGHT RIDER MODUS",AppMode.KNIGHTRIGER);
-                }
-            }
-        };
-
-        ledThread = new Thread(ledRunnable);
-        ledThread.start();
+        if (mLedAnimator != null) {
+            mLedAnimator.play(mKnightRiderAnimation, true);
+        }
 
-        displayThread = new Thread(displayRunnable);
-        displayThread.start();
+        startDisplayLoop(AppMode.KNIGHTRIGER, "KNIGHT RIDER MODUS");
     }
 
     @Override
     public boolean onKeyUp(int keyCode, KeyEvent event) {
         switch (keyCode) {
             case KeyEvent.KEYCODE_A:
+                mMainHandler.removeCallbacks(mTraceDumpPressRunnable);
                 try {
                     aButtonLed.setValue(false);
                 } catch (IOException e) {
@@ -833,23 +1205,85 @@ public class WeatherStationActivity extends Activity {
     }
 
 
+    // Button A was held down: dump the trace off the main thread.
+    private Runnable mTraceDumpPressRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Worker.BACKGROUND_COMPACTION.getHandler().post(mTraceDumpRunnable);
+        }
+    };
+
+    private Runnable mTraceDumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            EventTrace.dump(new File(getFilesDir(), TRACE_DUMP_FILE));
+        }
+    };
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mMainHandler.removeCallbacks(mTraceDumpPressRunnable);
+        EventTrace.dump(new File(getFilesDir(), TRACE_FILE));
+
+        // Publishing carries on in its service; only detach from it.
+        if (mPublisherBound) {
+            PublisherService service = mPublisherService;
+            if (service != null) {
+                service.setHeartbeat(null);
+                service.removePayloadSource(mWatchdog);
+                if (mGatewayServer != null) {
+                    service.removePayloadSource(mGatewayServer);
+                }
+                service.setMemoryBudget(null);
+                mPublisherService = null;
+            }
+            unbindService(mPublisherConnection);
+            mPublisherBound = false;
+        }
 
-        // Clean up sensor registrations
-        mSensorManager.unregisterListener(mTemperatureListener);
-        mSensorManager.unregisterListener(mPressureListener);
-        mSensorManager.unregisterDynamicSensorCallback(mDynamicSensorCallback);
+        // No restarts while everything is being torn down.
+        if (mWatchdog != null) {
+            mMainHandler.removeCallbacks(mMainHeartbeatRunnable);
+            if (mI2cArbiter != null) {
+                mWatchdog.removeBus(mI2cArbiter);
+            }
+            mWatchdog.close();
+            mWatchdog = null;
+        }
+        if (mMemoryBudget != null) {
+            mMemoryBudget.close();
+            mMemoryBudget = null;
+        }
+        mSamplingPlanner.setListener(null);
+        mMainHandler.removeCallbacks(mEndFaultWatchRunnable);
+        // The workers outlive the activity; stop the loops it runs on them.
+        mAppMode = null;
+        mRenderHandler.removeCallbacks(mDisplayStepRunnable);
+        mAudioHandler.removeCallbacks(mMarioNoteRunnable);
+
+        // Take the last snapshot before anything is torn down.
+        if (mSnapshot != null) {
+            mSnapshot.close();
+            mSnapshot = null;
+        }
 
         // Clean up peripheral.
-        if (mEnvironmentalSensorDriver != null) {
-            try {
-                mEnvironmentalSensorDriver.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            mEnvironmentalSensorDriver = null;
+        if (mEnvironmentalSampler != null) {
+            mEnvironmentalSampler.close();
+            mEnvironmentalSampler = null;
+        }
+        if (mReplayer != null) {
+            mReplayer.stop();
+            mReplayThread.interrupt();
+            mReplayer = null;
+            mReplayThread = null;
+        }
+        if (mRecorder != null) {
+            mTemperatureFilter.setRawListener(null);
+            mPressureFilter.setRawListener(null);
+            mRecorder.close();
+            mRecorder = null;
         }
         if (mButtonAInputDriver != null) {
             try {
@@ -870,20 +1304,27 @@ public class WeatherStationActivity extends Activity {
         }
 
         if (mDisplay != null) {
-            try {
-                mDisplay.clear();
-                mDisplay.setEnabled(false);
-                mDisplay.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error disabling display", e);
-            } finally {
-                mDisplay = null;
-            }
+            Log.d(TAG, "Display bus bytes written: " + mDisplay.getBytesWritten()
+                    + ", saved by diffing: " + mDisplay.getBytesSaved());
+            mDisplay.clear();
+            mDisplay.setEnabled(false);
+            mDisplay.close();
+            mDisplay = null;
+        }
+        // Runs the queued shutdown transactions of the sensor and the display, then stops.
+        if (mI2cArbiter != null) {
+            mI2cArbiter.close();
+            mI2cArbiter = null;
         }
 
+        mRenderHandler.removeCallbacks(mFaultFlashRunnable);
+        mAudioHandler.removeCallbacks(mFaultBeepRunnable);
+        if (mLedAnimator != null) {
+            mLedAnimator.stop();
+            mLedAnimator = null;
+        }
         if (mLedstrip != null) {
             try {
-                mLedstrip.write(new int[7]);
                 mLedstrip.setBrightness(0);
                 mLedstrip.close();
             } catch (IOException e) {
@@ -904,70 +1345,43 @@ public class WeatherStationActivity extends Activity {
             }
         }
 
-        // clean up Cloud PubSub publisher.
-        if (mPubsubPublisher != null) {
-            mSensorManager.unregisterListener(mPubsubPublisher.getTemperatureListener());
-            mSensorManager.unregisterListener(mPubsubPublisher.getPressureListener());
-            mPubsubPublisher.close();
-            mPubsubPublisher = null;
+        if (mGatewayServer != null) {
+            mGatewayServer.close();
+            mGatewayServer = null;
         }
-    }
 
-    private void updateDisplay(float value) {
-        if (mDisplay != null) {
-            try {
-                mDisplay.display(value);
-            } catch (IOException e) {
-                Log.e(TAG, "Error setting display", e);
-            }
-        }
+        mTemperatureFilter.removeListener(PublisherService.getSampleRing());
+        mPressureFilter.removeListener(PublisherService.getSampleRing());
     }
 
     private void updateDisplay(String value) {
         if (mDisplay != null) {
-            try {
-                mDisplay.display(value);
-            } catch (IOException e) {
-                Log.e(TAG, "Error setting display", e);
-            }
+            mDisplay.display(value);
         }
     }
 
-    private void floatTextOnDisplay(String text,AppMode mode) {
-        clearDisplay();
+    // Shows step i of scrolling text in from the right and out to the left.
+    private void floatTextOnDisplay(String text, int i) {
         List<String> displayedCharacters = new ArrayList<String>();
-        int displayLength = 4;
-        int numberOfSteps = text.length() + displayLength;
-            for(int i = 0; i <numberOfSteps; i++) {
-                if(mAppMode != mode) {
-                    break;
-                }
-                displayedCharacters.clear();
-                int numberOfEmptySpace = displayLength - i;
-                for (int j = 0; j < numberOfEmptySpace; j++) {
-                    displayedCharacters.add(" ");
-                }
-                int leftDisplaySpace = displayLength - displayedCharacters.size();
-                int startIndex = 0;
-                if (numberOfEmptySpace < 0) {
-                    startIndex = i - displayLength;
-                }
-                for (int k = 0; k < leftDisplaySpace; k++) {
-                    int characterIndex = startIndex + k;
-                    if (characterIndex >= 0 && characterIndex < text.length()) {
-                        String character = String.valueOf(text.charAt(characterIndex));
-                        displayedCharacters.add(character);
-                    } else {
-                        displayedCharacters.add(" ");
-                    }
-                }
-                displayString(displayedCharacters);
-                try {
-                    Thread.currentThread().sleep(500);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "InterruptedException");
-                }
+        int numberOfEmptySpace = DISPLAY_LENGTH - i;
+        for (int j = 0; j < numberOfEmptySpace; j++) {
+            displayedCharacters.add(" ");
+        }
+        int leftDisplaySpace = DISPLAY_LENGTH - displayedCharacters.size();
+        int startIndex = 0;
+        if (numberOfEmptySpace < 0) {
+            startIndex = i - DISPLAY_LENGTH;
+        }
+        for (int k = 0; k < leftDisplaySpace; k++) {
+            int characterIndex = startIndex + k;
+            if (characterIndex >= 0 && characterIndex < text.length()) {
+                String character = String.valueOf(text.charAt(characterIndex));
+                displayedCharacters.add(character);
+            } else {
+                displayedCharacters.add(" ");
             }
+        }
+        displayString(displayedCharacters);
     }
 
     private void displayString(List<String> strings) {
@@ -979,13 +1393,43 @@ public class WeatherStationActivity extends Activity {
     }
     private void clearDisplay() {
         if (mDisplay != null) {
+            mDisplay.clear();
+        }
+    }
+
+    // Flash the led strip red and beep once; the strip then goes back to the barometer, or to
+    // the running animation. The peripherals are driven on their own workers so that no caller
+    // waits on a bus.
+    private void showFault() {
+        mRenderHandler.post(mFaultFlashRunnable);
+        mAudioHandler.post(mFaultBeepRunnable);
+    }
+
+    private Runnable mFaultFlashRunnable = new Runnable() {
+        @Override
+        public void run() {
+            LedAnimator animator = mLedAnimator;
+            if (animator != null) {
+                animator.play(mFaultAnimation, false);
+            }
+        }
+    };
+
+    private Runnable mFaultBeepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mSpeaker == null) {
+                return;
+            }
             try {
-                mDisplay.clear();
+                mSpeaker.play(FAULT_BEEP_FREQUENCY_HZ);
             } catch (IOException e) {
-                Log.e(TAG, "Error clearing display", e);
+                Log.e(TAG, "Error playing fault beep", e);
+                return;
             }
+            mAudioHandler.postDelayed(mSpeakerStopRunnable, FAULT_BEEP_MS);
         }
-    }
+    };
 
     private void updateBarometer(float pressure) {
         // Update UI.
@@ -997,22 +1441,19 @@ public class WeatherStationActivity extends Activity {
             mImageView.setImageResource(R.drawable.ic_cloudy);
         }
         // Update led strip.
-        if (mLedstrip == null) {
+        if (mLedAnimator == null) {
             return;
         }
         float t = (pressure - BAROMETER_RANGE_LOW) / (BAROMETER_RANGE_HIGH - BAROMETER_RANGE_LOW);
         int n = (int) Math.ceil(mRainbow.length * t);
         n = Math.max(0, Math.min(n, mRainbow.length));
-        int[] colors = new int[mRainbow.length];
+        int[] colors = mBarometerColors;
+        Arrays.fill(colors, 0);
         for (int i = 0; i < n; i++) {
             int ri = mRainbow.length - 1 - i;
             colors[ri] = mRainbow[ri];
         }
-        try {
-            mLedstrip.write(colors);
-        } catch (IOException e) {
-            Log.e(TAG, "Error setting ledstrip", e);
-        }
+        mLedAnimator.show(colors);
     }
 }
 
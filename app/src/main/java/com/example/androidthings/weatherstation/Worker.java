@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The app's fixed set of named executors, one per kind of work, each at its own thread priority
+ * so that audio and frame pacing keep their deadlines while the network thread parses JSON.
+ *
+ * <p>Short tasks go through {@link #getHandler()}, which records how late each message ran
+ * relative to when it was due (the time equivalent of queue depth) and how long it ran. Loops
+ * that block, such as a selector or a render thread, get a dedicated thread at the same priority
+ * from {@link #newThread}. Workers start on first use and live as long as the process.
+ */
+final class Worker {
+    private static final String TAG = Worker.class.getSimpleName();
+
+    /** Sensor ticks, the I2C bus and replays: the readings' timestamps depend on it. */
+    static final Worker SENSOR_INGEST =
+            new Worker("sensorIngest", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+    /** Speaker notes, which are audibly off when late. */
+    static final Worker REALTIME_AUDIO =
+            new Worker("realtimeAudio", Process.THREAD_PRIORITY_URGENT_AUDIO);
+    /** Segment display and led strip frames. */
+    static final Worker RENDER = new Worker("render", Process.THREAD_PRIORITY_DISPLAY);
+    /** Pub/Sub requests and the gateway. */
+    static final Worker NETWORK_IO = new Worker("networkIo", Process.THREAD_PRIORITY_DEFAULT);
+    /**
+     * Credential parsing and token refreshes, which block on key parsing and the token server
+     * and so must never queue ahead of a publish.
+     */
+    static final Worker CREDENTIALS = new Worker("credentials", Process.THREAD_PRIORITY_DEFAULT);
+    /** State snapshots and anything else that only has to happen eventually. */
+    static final Worker BACKGROUND_COMPACTION =
+            new Worker("backgroundCompaction", Process.THREAD_PRIORITY_BACKGROUND);
+
+    static final Worker[] ALL = {
+            SENSOR_INGEST, REALTIME_AUDIO, RENDER, NETWORK_IO, CREDENTIALS, BACKGROUND_COMPACTION,
+    };
+
+    private final String mName;
+    private final int mPriority;
+    private final LatencyHistogram mQueueDelayMs = new LatencyHistogram();
+    private final LatencyHistogram mRunTimeUs = new LatencyHistogram();
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    private Worker(String name, int priority) {
+        mName = name;
+        mPriority = priority;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    synchronized Handler getHandler() {
+        if (mHandler == null) {
+            mHandlerThread = new HandlerThread(mName, mPriority);
+            mHandlerThread.start();
+            mHandler = new MeteredHandler(mHandlerThread);
+        }
+        return mHandler;
+    }
+
+    /**
+     * Abandons a handler thread that is stuck, leaving it to finish what it has already queued,
+     * and starts a fresh one. Handlers obtained before the call keep pointing at the old thread,
+     * so whoever calls this must recreate the components that run on it.
+     */
+    synchronized void replaceThread() {
+        if (mHandlerThread == null) {
+            return;
+        }
+        Log.w(TAG, "Replacing " + mName + " thread");
+        mHandlerThread.quitSafely();
+        mHandlerThread = null;
+        mHandler = null;
+    }
+
+    /** A dedicated thread at this worker's priority, for loops that block. */
+    Thread newThread(final Runnable runnable, String name) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                setPriority(mPriority);
+                runnable.run();
+            }
+        }, mName + "-" + name);
+    }
+
+    /**
+     * Returns {@code {"queueDelayMs": {...}, "runTimeUs": {...}}} since the last call, or null
+     * if the worker was never used.
+     */
+    synchronized JSONObject toJson() throws JSONException {
+        if (mHandler == null) {
+            return null;
+        }
+        JSONObject json = new JSONObject();
+        json.put("queueDelayMs", mQueueDelayMs.toJson());
+        json.put("runTimeUs", mRunTimeUs.toJson());
+        mQueueDelayMs.reset();
+        mRunTimeUs.reset();
+        return json;
+    }
+
+    private static void setPriority(int priority) {
+        try {
+            Process.setThreadPriority(priority);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Not allowed to set thread priority " + priority, e);
+        }
+    }
+
+    private class MeteredHandler extends Handler {
+        MeteredHandler(HandlerThread thread) {
+            super(thread.getLooper());
+        }
+
+        @Override
+        public void dispatchMessage(Message msg) {
+            long start = SystemClock.uptimeMillis();
+            // Messages posted to the front of the queue carry no due time.
+            if (msg.getWhen() != 0) {
+                mQueueDelayMs.record(start - msg.getWhen());
+            }
+            long startNanos = System.nanoTime();
+            try {
+                super.dispatchMessage(msg);
+            } finally {
+                mRunTimeUs.record((System.nanoTime() - startNanos) / 1000L);
+            }
+        }
+    }
+}
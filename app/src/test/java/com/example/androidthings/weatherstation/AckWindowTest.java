@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class AckWindowTest {
+    @Test
+    public void inOrderAcksAdvanceTheWatermark() {
+        AckWindow window = new AckWindow(10);
+        window.markAcked(10, 12);
+        assertEquals(13, window.getLowWatermark());
+        assertTrue(window.isSettled(12));
+        assertFalse(window.isSettled(13));
+    }
+
+    @Test
+    public void acksFarAheadNeverSettleAnOlderPendingNumber() {
+        AckWindow window = new AckWindow(0);
+        // An express backlog acknowledged while bulk message 0 still waits.
+        for (long seq = 200; seq >= 1; seq--) {
+            window.markAcked(seq, seq);
+        }
+        assertEquals(0, window.getLowWatermark());
+        assertFalse(window.isSettled(0));
+        assertTrue(window.isSettled(1));
+        assertTrue(window.isSettled(200));
+        assertFalse(window.isSettled(201));
+
+        window.markAcked(0, 0);
+        assertEquals(201, window.getLowWatermark());
+    }
+
+    @Test
+    public void shuffledAcksKeepTheWatermarkExact() {
+        int count = 5000;
+        List<Long> seqs = new ArrayList<>();
+        for (long seq = 0; seq < count; seq++) {
+            seqs.add(seq);
+        }
+        Collections.shuffle(seqs, new Random(42));
+        AckWindow window = new AckWindow(0);
+        boolean[] acked = new boolean[count];
+        int watermark = 0;
+        for (long seq : seqs) {
+            window.markAcked(seq, seq);
+            acked[(int) seq] = true;
+            while (watermark < count && acked[watermark]) {
+                watermark++;
+            }
+            assertEquals(watermark, window.getLowWatermark());
+        }
+        for (long seq = 0; seq < count; seq++) {
+            assertTrue(window.isSettled(seq));
+        }
+    }
+
+    @Test
+    public void droppedAndSkippedNumbersReleaseTheWatermark() {
+        AckWindow window = new AckWindow(0);
+        window.markAcked(1, 1);
+        // 0 was dropped from a full lane.
+        window.markSettled(0);
+        assertEquals(2, window.getLowWatermark());
+        // A restart skipped the rest of a reserved block.
+        for (long seq = 2; seq < 100; seq++) {
+            window.markSettled(seq);
+        }
+        window.markAcked(100, 100);
+        assertEquals(101, window.getLowWatermark());
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Guards the allocation-free sample path: once warmed up, filling the series and encoding them as
+ * JSON and as Gorilla blocks must not allocate.
+ */
+public class AllocationTest {
+    private static final int SAMPLES_PER_ROUND = 120;
+    private static final int WARM_UP_ROUNDS = 2000;
+    private static final int ROUNDS = 1000;
+
+    private final SampleSeries mTemperature =
+            new SampleSeries("t", SampleScale.TEMPERATURE, SAMPLES_PER_ROUND, 0);
+    private final SampleSeries mPressure =
+            new SampleSeries("p", SampleScale.PRESSURE, SAMPLES_PER_ROUND, 0);
+    private final PayloadWriter mWriter = new PayloadWriter();
+    private final BitWriter mBits = new BitWriter(16);
+    private final GorillaEncoder mEncoder = new GorillaEncoder(1);
+    private long mClock;
+
+    @Test
+    public void fillAndEncodeRoundsAllocateNothing() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return; // Allocation counters are HotSpot specific.
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            round();
+        }
+        threads.getThreadAllocatedBytes(threadId);
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ROUNDS; i++) {
+            round();
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        // Allow for the counter itself, but not for anything proportional to the rounds.
+        assertTrue("Allocated " + allocated + " bytes in " + ROUNDS + " rounds",
+                allocated < ROUNDS);
+    }
+
+    private void round() {
+        long base = mClock;
+        for (int i = 0; i < SAMPLES_PER_ROUND; i++) {
+            mClock += 1000000000L + (i & 7) * 1000000L;
+            mTemperature.add(mClock, 20f + (i & 15) * 0.1f);
+            mPressure.add(mClock, 1013f - (i & 31) * 0.25f);
+        }
+        mTemperature.writeLastValueTo(mWriter.reset().beginObject());
+        mPressure.writeLastValueTo(mWriter);
+        mWriter.endObject();
+
+        mWriter.reset().beginObject();
+        mTemperature.drainTo(mWriter, base);
+        mWriter.endObject();
+
+        mBits.reset();
+        mPressure.drainTo(mBits, mEncoder, 1480000000000L);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AnomalyDetectorTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void burstNoiseIsNotARateOfChange() {
+        AnomalyDetector detector = AnomalyDetector.forPressure();
+        // Bursts of four readings 12 ms apart every ten seconds, jumping by a few 2.6 Pa steps.
+        float[] noise = {0.f, 0.026f, -0.052f, 0.078f};
+        long timestamp = 0;
+        for (int burst = 0; burst < 100; burst++) {
+            for (int i = 0; i < noise.length; i++) {
+                assertEquals(AnomalyDetector.Fault.NONE,
+                        detector.check(1013.25f + noise[i], timestamp + i * 12 * MS));
+            }
+            timestamp += 10000 * MS;
+        }
+    }
+
+    @Test
+    public void jumpsWithinABurstAreStillCaught() {
+        AnomalyDetector detector = AnomalyDetector.forPressure();
+        assertEquals(AnomalyDetector.Fault.NONE, detector.check(1013.f, 0));
+        assertEquals(AnomalyDetector.Fault.RATE_OF_CHANGE, detector.check(1019.f, 12 * MS));
+    }
+
+    @Test
+    public void rateIsMeasuredOverLongerGaps() {
+        AnomalyDetector detector = AnomalyDetector.forPressure();
+        assertEquals(AnomalyDetector.Fault.NONE, detector.check(1013.f, 0));
+        assertEquals(AnomalyDetector.Fault.NONE, detector.check(1021.f, 2000 * MS));
+        assertEquals(AnomalyDetector.Fault.RATE_OF_CHANGE, detector.check(1033.f, 4000 * MS));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class BitWriterTest {
+    @Test
+    public void readsBackFieldsOfEveryWidth() {
+        BitWriter writer = new BitWriter(1);
+        for (int bits = 1; bits <= 64; bits++) {
+            writer.writeBits(pattern(bits), bits);
+        }
+        writer.writeBit(true);
+        writer.alignToByte();
+        assertEquals(64 * 65 / 2 + 8, writer.getBitLength());
+
+        BitReader reader = new BitReader(writer.getBuffer(), 0, writer.getByteLength());
+        for (int bits = 1; bits <= 64; bits++) {
+            assertEquals("width " + bits, pattern(bits), reader.readBits(bits));
+        }
+        assertTrue(reader.readBit());
+        reader.alignToByte();
+        assertFalse(reader.hasRemaining());
+    }
+
+    @Test
+    public void resetRewindsWithoutLeavingStaleBits() {
+        BitWriter writer = new BitWriter(4);
+        writer.writeBits(-1L, 64);
+        writer.reset();
+        writer.writeBits(0x5, 3);
+        writer.alignToByte();
+        assertEquals(1, writer.getByteLength());
+        assertEquals((byte) 0xA0, writer.getBuffer()[0]);
+    }
+
+    @Test
+    public void refusesToReadPastTheEnd() {
+        BitWriter writer = new BitWriter(1);
+        writer.writeBits(0xAB, 8);
+        BitReader reader = new BitReader(writer.getBuffer(), 0, writer.getByteLength());
+        reader.readBits(4);
+        try {
+            reader.readBits(5);
+            fail("Read past the end");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /** Alternating bits with the top bit of the field set, so every width is distinguishable. */
+    private static long pattern(int bits) {
+        long value = 0x5555555555555555L | 1L << (bits - 1);
+        return bits == 64 ? value : value & ((1L << bits) - 1);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.hardware.Sensor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Simulates many stations talking to a {@link GatewayServer}, for load testing gateway mode on
+ * a host, from {@link GatewayLoadTest} or on its own through {@link #main}. Each station has its
+ * own connection and sends temperature and pressure readings, drifting randomly, at a fixed
+ * rate; sends are spread evenly over time. A station the gateway refuses or disconnects simply
+ * goes quiet, like a real one would until it retries.
+ */
+class GatewayLoadGenerator implements Runnable {
+    private final InetSocketAddress mAddress;
+    private final int mStationCount;
+    private final float mReadingsPerSecond;
+    private final Random mRandom = new Random();
+    private volatile boolean mStopped;
+    private long mSent;
+    private int mClosedStations;
+
+    /** {@code readingsPerSecond} is per station. */
+    GatewayLoadGenerator(InetSocketAddress address, int stationCount, float readingsPerSecond) {
+        mAddress = address;
+        mStationCount = stationCount;
+        mReadingsPerSecond = readingsPerSecond;
+    }
+
+    void stop() {
+        mStopped = true;
+    }
+
+    synchronized long getSentReadings() {
+        return mSent;
+    }
+
+    /** Stations whose connection the gateway closed. */
+    synchronized int getClosedStations() {
+        return mClosedStations;
+    }
+
+    /** Connects every station, then sends readings until {@link #stop()} is called. */
+    @Override
+    public void run() {
+        SocketChannel[] channels = new SocketChannel[mStationCount];
+        float[] temperatures = new float[mStationCount];
+        float[] pressures = new float[mStationCount];
+        ByteBuffer frame = ByteBuffer.allocate(2 + 255);
+        try {
+            for (int i = 0; i < mStationCount && !mStopped; i++) {
+                channels[i] = SocketChannel.open(mAddress);
+                byte[] id = ("station-" + i).getBytes(StandardCharsets.UTF_8);
+                frame.clear();
+                frame.put(GatewayServer.FRAME_HELLO).put((byte) id.length).put(id).flip();
+                send(channels, i, frame);
+                temperatures[i] = 15 + 10 * mRandom.nextFloat();
+                pressures[i] = 990 + 40 * mRandom.nextFloat();
+            }
+            long periodNanos = (long) (1e9 / (mStationCount * mReadingsPerSecond));
+            long next = System.nanoTime();
+            for (int n = 0; !mStopped; n++) {
+                int i = n % mStationCount;
+                next += periodNanos;
+                if (channels[i] == null) {
+                    continue;
+                }
+                boolean temperature = (n / mStationCount) % 2 == 0;
+                float value;
+                if (temperature) {
+                    value = temperatures[i] += (float) mRandom.nextGaussian() * 0.05f;
+                } else {
+                    value = pressures[i] += (float) mRandom.nextGaussian() * 0.1f;
+                }
+                frame.clear();
+                frame.put(GatewayServer.FRAME_READING)
+                        .put((byte) (temperature ? Sensor.TYPE_AMBIENT_TEMPERATURE
+                                : Sensor.TYPE_PRESSURE))
+                        .putLong(System.currentTimeMillis())
+                        .putFloat(value)
+                        .flip();
+                if (send(channels, i, frame)) {
+                    synchronized (this) {
+                        mSent++;
+                    }
+                }
+                long delayNanos = next - System.nanoTime();
+                if (delayNanos > 0) {
+                    Thread.sleep(delayNanos / 1000000L, (int) (delayNanos % 1000000L));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error connecting to gateway", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (SocketChannel channel : channels) {
+                close(channel);
+            }
+        }
+    }
+
+    // Returns false, and forgets the station, if the gateway has closed its connection.
+    private boolean send(SocketChannel[] channels, int i, ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                channels[i].write(buffer);
+            }
+            return true;
+        } catch (IOException e) {
+            close(channels[i]);
+            channels[i] = null;
+            synchronized (this) {
+                mClosedStations++;
+            }
+            return false;
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to clean up.
+            }
+        }
+    }
+
+    /** Usage: {@code GatewayLoadGenerator <host> <port> <stations> <readings/s per station>}. */
+    public static void main(String[] args) {
+        GatewayLoadGenerator generator = new GatewayLoadGenerator(
+                new InetSocketAddress(args[0], Integer.parseInt(args[1])),
+                Integer.parseInt(args[2]), Float.parseFloat(args[3]));
+        generator.run();
+    }
+}
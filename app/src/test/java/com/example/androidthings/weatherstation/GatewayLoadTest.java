@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Drives thousands of {@link GatewayLoadGenerator} stations through a {@link GatewayServer} on
+ * the loopback interface, with a heap limit that only admits some of them.
+ */
+public class GatewayLoadTest {
+    private static final int STATIONS = 2000;
+    private static final int ADMITTED = 1500;
+    private static final float READINGS_PER_SECOND = 50;
+    // Enough batches for the round-robin to serve every admitted station twice.
+    private static final int BATCHES = 2 * ADMITTED * 4 / GatewayServer.MAX_READINGS_PER_BATCH;
+    private static final long TIMEOUT_MS = 30000;
+
+    private GatewayServer mServer;
+    private GatewayLoadGenerator mGenerator;
+    private Thread mGeneratorThread;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new GatewayServer(0);
+        mServer.setHeapLimit((long) ADMITTED * GatewayServer.SOURCE_BYTES);
+        mServer.start();
+        mGenerator = new GatewayLoadGenerator(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), mServer.getPort()),
+                STATIONS, READINGS_PER_SECOND);
+        mGeneratorThread = new Thread(mGenerator, "gatewayLoadGenerator");
+        mGeneratorThread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mGenerator.stop();
+        mGeneratorThread.join();
+        mServer.close();
+    }
+
+    @Test
+    public void capsStationsSharesFairlyAndAccountsForEveryReading() throws Exception {
+        // The heap limit admits the first stations and refuses the rest.
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mServer.getSourceCount() == ADMITTED
+                        && mServer.getRefusedStations() == STATIONS - ADMITTED;
+            }
+        });
+        assertEquals((long) ADMITTED * GatewayServer.SOURCE_BYTES, mServer.getHeapBytes());
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mGenerator.getClosedStations() == STATIONS - ADMITTED;
+            }
+        });
+
+        // Let every queue overflow, then check that consecutive batches share out evenly.
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mServer.getReceivedReadings()
+                        > 2L * ADMITTED * GatewayServer.SOURCE_QUEUE_CAPACITY;
+            }
+        });
+        assertTrue(mServer.getDroppedReadings() > 0);
+        Map<String, Integer> counts = new HashMap<>();
+        long drained = 0;
+        for (int b = 0; b < BATCHES; b++) {
+            drained += count(mServer.createPayload("gateway"), counts);
+        }
+        assertEquals(ADMITTED, counts.size());
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            assertEquals(entry.getKey(), 2 * 4, (int) entry.getValue());
+        }
+
+        // Once every station is gone, each reading was either published or counted as dropped.
+        mGenerator.stop();
+        mGeneratorThread.join();
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mServer.getSourceCount() == 0;
+            }
+        });
+        JSONObject payload;
+        while ((payload = mServer.createPayload("gateway")) != null) {
+            drained += count(payload, counts);
+        }
+        assertTrue(mServer.getReceivedReadings() <= mGenerator.getSentReadings());
+        assertEquals(mServer.getReceivedReadings(), drained + mServer.getDroppedReadings());
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void await(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.isMet()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    // Adds the readings per station of one payload to counts, and returns their total.
+    private static int count(JSONObject payload, Map<String, Integer> counts) throws Exception {
+        JSONObject stations = payload.getJSONObject("stations");
+        int total = 0;
+        for (Iterator<String> ids = stations.keys(); ids.hasNext(); ) {
+            String id = ids.next();
+            int n = stations.getJSONObject(id).getJSONArray("v").length();
+            Integer previous = counts.get(id);
+            counts.put(id, previous == null ? n : previous + n);
+            total += n;
+        }
+        return total;
+    }
+}
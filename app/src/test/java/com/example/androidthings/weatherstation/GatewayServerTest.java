@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Drives synthetic stations through a {@link GatewayServer} on the loopback interface. */
+public class GatewayServerTest {
+    // More than one batch can hold, so that the round-robin has to share it out.
+    private static final int STATIONS = 100;
+    private static final int CHATTY_EXTRA = 10;
+    private static final long BASE_MS = 1480000000000L;
+    private static final long TIMEOUT_MS = 10000;
+
+    private GatewayServer mServer;
+    private final List<SocketChannel> mChannels = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new GatewayServer(0);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (SocketChannel channel : mChannels) {
+            channel.close();
+        }
+        mServer.close();
+    }
+
+    @Test
+    public void sharesBatchesFairlyAndAccountsForDrops() throws Exception {
+        // Every station fills its queue; station 0 sends more than it can hold.
+        int sent = 0;
+        for (int i = 0; i < STATIONS; i++) {
+            int readings = GatewayServer.SOURCE_QUEUE_CAPACITY + (i == 0 ? CHATTY_EXTRA : 0);
+            connect("station-" + i, readings);
+            sent += readings;
+        }
+        awaitReceived(sent);
+        assertEquals(CHATTY_EXTRA, mServer.getDroppedReadings());
+        assertEquals(STATIONS, mServer.getSourceCount());
+
+        int queued = STATIONS * GatewayServer.SOURCE_QUEUE_CAPACITY;
+        int perStation = GatewayServer.MAX_READINGS_PER_BATCH / STATIONS;
+        int[] first = countPerStation(mServer.createPayload("gateway"));
+        int[] second = countPerStation(mServer.createPayload("gateway"));
+        for (int i = 0; i < STATIONS; i++) {
+            assertEquals("station-" + i, perStation, first[i]);
+            assertEquals("station-" + i,
+                    GatewayServer.SOURCE_QUEUE_CAPACITY - perStation, second[i]);
+        }
+        assertEquals(queued, sum(first) + sum(second));
+        assertNull(mServer.createPayload("gateway"));
+    }
+
+    @Test
+    public void keepsTheNewestReadingsOfAStationThatOverflows() throws Exception {
+        int readings = GatewayServer.SOURCE_QUEUE_CAPACITY + CHATTY_EXTRA;
+        connect("chatty", readings);
+        awaitReceived(readings);
+
+        JSONObject payload = mServer.createPayload("gateway");
+        assertEquals(BASE_MS + CHATTY_EXTRA, payload.getLong("timestamp"));
+        JSONObject station = payload.getJSONObject("stations").getJSONObject("chatty");
+        JSONArray deltas = station.getJSONArray("dt");
+        JSONArray values = station.getJSONArray("v");
+        assertEquals(GatewayServer.SOURCE_QUEUE_CAPACITY, values.length());
+        for (int k = 0; k < values.length(); k++) {
+            assertEquals(k, deltas.getLong(k));
+            assertEquals(CHATTY_EXTRA + k, values.getDouble(k), 0);
+        }
+        assertEquals(CHATTY_EXTRA, mServer.getDroppedReadings());
+    }
+
+    @Test
+    public void dropsReadingsThatAreNotFiniteNumbers() throws Exception {
+        SocketChannel channel = open();
+        byte[] id = "broken".getBytes(StandardCharsets.UTF_8);
+        float[] values = {1.5f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 2.5f};
+        ByteBuffer out = ByteBuffer.allocate(2 + id.length
+                + values.length * GatewayServer.READING_FRAME_SIZE);
+        out.put(GatewayServer.FRAME_HELLO).put((byte) id.length).put(id);
+        for (int k = 0; k < values.length; k++) {
+            out.put(GatewayServer.FRAME_READING).put((byte) 1).putLong(BASE_MS + k)
+                    .putFloat(values[k]);
+        }
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        awaitReceived(values.length);
+
+        assertEquals(3, mServer.getDroppedReadings());
+        JSONArray kept = mServer.createPayload("gateway").getJSONObject("stations")
+                .getJSONObject("broken").getJSONArray("v");
+        assertEquals(2, kept.length());
+        assertEquals(1.5, kept.getDouble(0), 0);
+        assertEquals(2.5, kept.getDouble(1), 0);
+    }
+
+    /** Opens a station that says hello and sends readings 0, 1, ... a millisecond apart. */
+    private void connect(String id, int readings) throws IOException {
+        SocketChannel channel = open();
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(2 + idBytes.length
+                + readings * GatewayServer.READING_FRAME_SIZE);
+        out.put(GatewayServer.FRAME_HELLO).put((byte) idBytes.length).put(idBytes);
+        for (int k = 0; k < readings; k++) {
+            out.put(GatewayServer.FRAME_READING).put((byte) 1).putLong(BASE_MS + k)
+                    .putFloat(k);
+        }
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+    }
+
+    private SocketChannel open() throws IOException {
+        SocketChannel channel = SocketChannel.open(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), mServer.getPort()));
+        mChannels.add(channel);
+        return channel;
+    }
+
+    private void awaitReceived(long readings) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mServer.getReceivedReadings() < readings) {
+            assertTrue("Gateway received " + mServer.getReceivedReadings() + " of " + readings,
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static int[] countPerStation(JSONObject payload) throws Exception {
+        int[] counts = new int[STATIONS];
+        JSONObject stations = payload.getJSONObject("stations");
+        for (int i = 0; i < STATIONS; i++) {
+            JSONObject station = stations.optJSONObject("station-" + i);
+            counts[i] = station == null ? 0 : station.getJSONArray("v").length();
+        }
+        return counts;
+    }
+
+    private static int sum(int[] counts) {
+        int sum = 0;
+        for (int count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+}
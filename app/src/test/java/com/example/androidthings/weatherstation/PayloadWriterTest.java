@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class PayloadWriterTest {
+    @Test
+    public void writesNestedObjectsAndArrays() {
+        PayloadWriter writer = new PayloadWriter();
+        writer.reset().beginObject()
+                .name("id").value("a")
+                .name("n").value(-42)
+                .name("v").beginArray().fixedValue(2150, 2).fixedValue(-5, 2).endArray()
+                .name("q").quotedFixedValue(101325, 2)
+                .endObject();
+        assertEquals("{\"id\":\"a\",\"n\":-42,\"v\":[21.50,-0.05],\"q\":\"1013.25\"}",
+                writer.toString());
+    }
+
+    @Test
+    public void escapesQuotesBackslashesAndControlCharacters() {
+        PayloadWriter writer = new PayloadWriter();
+        writer.reset().beginObject()
+                .name("detail").value("a\"b\\c\nd\re\tf\u0001g\u001f")
+                .endObject();
+        assertEquals("{\"detail\":\"a\\\"b\\\\c\\nd\\re\\tf\\u0001g\\u001f\"}",
+                writer.toString());
+    }
+
+    @Test
+    public void encodesNonAsciiAsUtf8() {
+        // Two, three and four byte sequences: degree sign, e acute, euro sign and a rain cloud.
+        String text = "\u00b0C \u00e9t\u00e9 \u20ac \ud83c\udf27";
+        PayloadWriter writer = new PayloadWriter();
+        writer.reset().value(text);
+        byte[] expected = ("\"" + text + "\"").getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, writer.toString().getBytes(StandardCharsets.UTF_8));
+        assertEquals(expected.length, writer.length());
+    }
+
+    @Test
+    public void replacesUnpairedSurrogates() {
+        PayloadWriter writer = new PayloadWriter();
+        writer.reset().value("a\ud800b");
+        assertEquals("\"a?b\"", writer.toString());
+    }
+}
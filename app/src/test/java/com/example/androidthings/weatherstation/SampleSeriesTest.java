@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class SampleSeriesTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void drainsDeltasAndFixedPointValuesAsJson() {
+        SampleSeries series = new SampleSeries("t", SampleScale.TEMPERATURE, 8, 0);
+        series.add(1500 * MS, 21.5f);
+        series.add(2500 * MS, 21.504f);
+        series.add(4000 * MS, -3.25f);
+        PayloadWriter writer = new PayloadWriter();
+        writer.reset().beginObject();
+        series.drainTo(writer, 1000 * MS);
+        writer.endObject();
+        assertEquals("{\"t\":{\"dt\":[500,1000,1500],\"v\":[21.50,21.50,-3.25]}}",
+                writer.toString());
+        assertTrue(series.isEmpty());
+    }
+
+    @Test
+    public void dropsSamplesSoonerThanTheMinimumInterval() {
+        SampleSeries series = new SampleSeries("t", SampleScale.TEMPERATURE, 8, 100 * MS);
+        assertTrue(series.add(0, 20f));
+        assertFalse(series.add(99 * MS, 21f));
+        assertTrue(series.add(100 * MS, 22f));
+    }
+
+    @Test
+    public void keepsPressureToThePascalOverTheSensorRange() {
+        SampleSeries series = new SampleSeries("p", SampleScale.PRESSURE, 4, 0);
+        series.add(1000 * MS, 1013.27f);
+        series.add(2000 * MS, 1013.26f);
+        series.add(3000 * MS, 300.01f);
+        series.add(4000 * MS, 1099.99f);
+        PayloadWriter writer = new PayloadWriter();
+        writer.reset().beginObject();
+        series.drainTo(writer, 0);
+        writer.endObject();
+        assertEquals("{\"p\":{\"dt\":[1000,1000,1000,1000],"
+                + "\"v\":[1013.27,1013.26,300.01,1099.99]}}", writer.toString());
+    }
+
+    @Test
+    public void gorillaBlockRoundTripsTimestampsAndValues() {
+        int count = 500;
+        SampleSeries series = new SampleSeries("p", SampleScale.PRESSURE, count, 0);
+        long[] timestampsNanos = new long[count];
+        int[] expected = new int[count];
+        long timestamp = 0;
+        for (int i = 0; i < count; i++) {
+            // Mostly regular intervals with jitter and the odd long gap, so that every delta
+            // bucket is exercised.
+            timestamp += (i % 97 == 0 ? 600000 : 1000 + (i * 7919) % 13) * MS;
+            float value = 1013.25f + (i % 50 == 0 ? 80f : (float) Math.sin(i / 10.0));
+            timestampsNanos[i] = timestamp;
+            expected[i] = SampleScale.PRESSURE.quantize(value);
+            series.add(timestamp, value);
+        }
+        long wallClockOffsetMs = 1480000000000L;
+        BitWriter out = new BitWriter(16);
+        series.drainTo(out, new GorillaEncoder(1), wallClockOffsetMs);
+        assertTrue(series.isEmpty());
+
+        BitReader in = new BitReader(out.getBuffer(), 0, out.getByteLength());
+        assertEquals(1, in.readBits(8));
+        assertEquals('p', in.readBits(8));
+        long[] timestampsMs = new long[count];
+        int[] values = new int[count];
+        GorillaDecoder decoder = new GorillaDecoder();
+        assertEquals(count, decoder.decode(in, timestampsMs, values));
+        assertFalse(in.hasRemaining());
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            assertEquals(wallClockOffsetMs + timestampsNanos[i] / MS, timestampsMs[i]);
+            assertEquals(expected[i], values[i]);
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+        }
+        assertEquals(min, decoder.getMin());
+        assertEquals(max, decoder.getMax());
+        assertEquals(SampleScale.PRESSURE.getStep(), decoder.getScale().getStep());
+        assertEquals(SampleScale.PRESSURE.getOffset(), decoder.getScale().getOffset());
+    }
+
+    @Test
+    public void snapshotRoundTripsAheadOfNewSamples() {
+        SampleSeries saved = new SampleSeries("t", SampleScale.TEMPERATURE, 4, 0);
+        saved.add(1000 * MS, 20f);
+        saved.add(2000 * MS, 21f);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        saved.writeTo(buffer);
+        buffer.flip();
+
+        SampleSeries restored = new SampleSeries("t", SampleScale.TEMPERATURE, 4, 0);
+        restored.add(5000 * MS, 22f);
+        restored.readFrom(buffer, 2000 * MS, 5000 * MS);
+        PayloadWriter writer = new PayloadWriter();
+        writer.reset().beginObject();
+        restored.drainTo(writer, 0);
+        writer.endObject();
+        assertEquals("{\"t\":{\"dt\":[3000,1000,1000],\"v\":[20.00,21.00,22.00]}}",
+                writer.toString());
+    }
+
+    @Test
+    public void dropsRestoredSamplesShiftedPastNow() {
+        SampleSeries saved = new SampleSeries("t", SampleScale.TEMPERATURE, 4, 0);
+        saved.add(1000 * MS, 20f);
+        saved.add(2000 * MS, 21f);
+        saved.add(3000 * MS, 22f);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        saved.writeTo(buffer);
+        buffer.flip();
+
+        SampleSeries restored = new SampleSeries("t", SampleScale.TEMPERATURE, 4, 0);
+        restored.readFrom(buffer, 500 * MS, 2600 * MS);
+        PayloadWriter writer = new PayloadWriter();
+        writer.reset().beginObject();
+        restored.drainTo(writer, 0);
+        writer.endObject();
+        assertEquals("{\"t\":{\"dt\":[1500,1000],\"v\":[20.00,21.00]}}", writer.toString());
+    }
+}
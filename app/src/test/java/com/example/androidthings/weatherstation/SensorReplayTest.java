@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.Sensor;
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SensorReplayTest {
+    private static final long MS = 1000000L;
+    private static final long RECORDED_START = 5000 * MS;
+    private static final long REPLAY_START = 900000 * MS;
+    private static final int READINGS = 100;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("replay", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void recordingRoundTripsIntoThePublisherRing() throws Exception {
+        SensorRecorder recorder = new SensorRecorder(mFile, new Handler());
+        for (int i = 0; i < READINGS; i++) {
+            // Sub-microsecond jitter is rounded away without drifting.
+            long timestamp = RECORDED_START + i * 50 * MS + i % 7 * 100;
+            recorder.onSample(Sensor.TYPE_AMBIENT_TEMPERATURE, 21.5f + i * 0.01f, timestamp);
+            recorder.onSample(Sensor.TYPE_PRESSURE, 1013.25f, timestamp);
+        }
+        long end = RECORDED_START + READINGS * 50 * MS;
+        // An impossible temperature and a pressure sensor that stops answering.
+        recorder.onSample(Sensor.TYPE_AMBIENT_TEMPERATURE, 200.f, end);
+        recorder.onSample(Sensor.TYPE_PRESSURE, Float.NaN, end);
+        recorder.close();
+
+        FilteredSensorListener temperature = new FilteredSensorListener(
+                Sensor.TYPE_AMBIENT_TEMPERATURE, FilterProfile.RAW.createChain(),
+                AnomalyDetector.forTemperature());
+        FilteredSensorListener pressure = new FilteredSensorListener(
+                Sensor.TYPE_PRESSURE, FilterProfile.RAW.createChain(),
+                AnomalyDetector.forPressure());
+        SampleRing ring = new SampleRing(4 * READINGS);
+        temperature.addListener(ring);
+        pressure.addListener(ring);
+        final List<String> faults = new ArrayList<>();
+        SensorFaultListener faultListener = new SensorFaultListener() {
+            @Override
+            public void onSensorFault(int sensorType, AnomalyDetector.Fault fault, float value) {
+                faults.add(sensorType + ":" + fault);
+            }
+        };
+        temperature.setFaultListener(faultListener);
+        pressure.setFaultListener(faultListener);
+
+        long count = new SensorReplayer(new FileInputStream(mFile))
+                .addTarget(Sensor.TYPE_AMBIENT_TEMPERATURE, temperature)
+                .addTarget(Sensor.TYPE_PRESSURE, pressure)
+                .setSpeed(SensorReplayer.AS_FAST_AS_POSSIBLE)
+                .setTimeBase(REPLAY_START)
+                .replay();
+        assertEquals(2 * READINGS + 2, count);
+
+        final List<float[]> samples = new ArrayList<>();
+        ring.drainTo(new SampleListener() {
+            @Override
+            public void onSample(int sensorType, float value, long timestampNanos) {
+                samples.add(new float[] {sensorType, value, timestampNanos - REPLAY_START});
+            }
+        });
+        assertEquals(2 * READINGS, samples.size());
+        for (int i = 0; i < READINGS; i++) {
+            float[] t = samples.get(2 * i);
+            float[] p = samples.get(2 * i + 1);
+            assertEquals(Sensor.TYPE_AMBIENT_TEMPERATURE, (int) t[0]);
+            assertEquals(21.5f + i * 0.01f, t[1], 0.f);
+            assertEquals(i * 50 * MS, t[2], 1000.f);
+            assertEquals(Sensor.TYPE_PRESSURE, (int) p[0]);
+            assertEquals(1013.25f, p[1], 0.f);
+            assertEquals(t[2], p[2], 0.f);
+        }
+        assertEquals(2, faults.size());
+        assertEquals(Sensor.TYPE_AMBIENT_TEMPERATURE + ":" + AnomalyDetector.Fault.OUT_OF_RANGE,
+                faults.get(0));
+        assertEquals(Sensor.TYPE_PRESSURE + ":" + AnomalyDetector.Fault.UNAVAILABLE,
+                faults.get(1));
+    }
+
+    @Test
+    public void samplesAreOnlyWrittenByTheFlush() throws Exception {
+        SensorRecorder recorder = new SensorRecorder(mFile, new Handler());
+        long header = recorder.getDiskBytes();
+        recorder.onSample(Sensor.TYPE_PRESSURE, 1013.25f, RECORDED_START);
+        recorder.onSample(Sensor.TYPE_PRESSURE, 1013.5f, RECORDED_START + 50 * MS);
+        assertEquals(header, recorder.getDiskBytes());
+        recorder.flush();
+        assertTrue(recorder.getDiskBytes() > header);
+        recorder.close();
+    }
+}